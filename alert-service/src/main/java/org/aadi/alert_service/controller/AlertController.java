@@ -1,13 +1,23 @@
 package org.aadi.alert_service.controller;
 
+import org.aadi.alert_service.dto.AlertPageDto;
+import org.aadi.alert_service.dto.UnreadCountDto;
 import org.aadi.alert_service.entity.Alert;
 import org.aadi.alert_service.service.AlertService;
+import org.aadi.alert_service.service.AlertStreamRegistry;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.Instant;
 import java.util.List;
 
 @RestController
@@ -15,9 +25,11 @@ import java.util.List;
 public class AlertController {
 
     private final AlertService alertService;
+    private final AlertStreamRegistry alertStreamRegistry;
 
-    public AlertController(AlertService alertService) {
+    public AlertController(AlertService alertService, AlertStreamRegistry alertStreamRegistry) {
         this.alertService = alertService;
+        this.alertStreamRegistry = alertStreamRegistry;
     }
 
     @GetMapping("/user/{userId}")
@@ -25,4 +37,57 @@ public class AlertController {
         List<Alert> alerts = alertService.getAlertsForUser(userId);
         return ResponseEntity.ok(alerts);
     }
+
+    // Served from in-memory counters, cheap enough for the badge to poll
+    @GetMapping("/user/{userId}/unread-count")
+    public ResponseEntity<UnreadCountDto> getUnreadCount(@PathVariable Long userId) {
+        return ResponseEntity.ok(alertService.getUnreadCount(userId));
+    }
+
+    // Returns how many of the alerts were still unacknowledged
+    @PutMapping("/user/{userId}/acknowledge")
+    public ResponseEntity<Integer> acknowledge(@PathVariable Long userId, @RequestBody List<Long> alertIds) {
+        return ResponseEntity.ok(alertService.acknowledge(userId, alertIds));
+    }
+
+    @PutMapping("/user/{userId}/acknowledge-all")
+    public ResponseEntity<Integer> acknowledgeAll(@PathVariable Long userId) {
+        return ResponseEntity.ok(alertService.acknowledgeAll(userId));
+    }
+
+    /**
+     * Alert history newest first, one page at a time. Pass the returned {@code nextCursor}
+     * to fetch the next page; {@code from}/{@code to} (ISO-8601) bound the creation time.
+     */
+    @GetMapping("/user/{userId}/history")
+    public ResponseEntity<AlertPageDto> getAlertHistory(
+            @PathVariable Long userId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String severity,
+            @RequestParam(required = false) Boolean acknowledged,
+            @RequestParam(required = false) Instant from,
+            @RequestParam(required = false) Instant to) {
+        if (from != null && to != null && !from.isBefore(to)) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return ResponseEntity.ok(alertService.getAlertPage(userId, cursor, limit, severity, acknowledged, from, to));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Server-sent events: one {@code alert} event per newly stored alert of the user, plus a
+     * heartbeat comment every few seconds. 503 when the subscriber limits are reached.
+     */
+    @GetMapping(value = "/user/{userId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamAlerts(@PathVariable Long userId) {
+        final SseEmitter emitter = alertStreamRegistry.subscribe(userId);
+        if (emitter == null) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return ResponseEntity.ok(emitter);
+    }
 }
@@ -0,0 +1,13 @@
+package org.aadi.alert_service.dto;
+
+import lombok.Builder;
+
+import java.util.List;
+
+@Builder
+public record AlertPageDto(
+    List<AlertSummaryDto> alerts,
+    // Pass back as ?cursor= for the next (older) page; null on the last page
+    String nextCursor
+) {
+}
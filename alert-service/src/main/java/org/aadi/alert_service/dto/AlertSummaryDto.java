@@ -0,0 +1,20 @@
+package org.aadi.alert_service.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * Alert history row: the fields a client lists, without the email and delivery state.
+ */
+public record AlertSummaryDto(
+    Long id,
+    String type,
+    String severity,
+    String message,
+    Double value,
+    Double threshold,
+    String device,
+    LocalDateTime timestamp,
+    boolean acknowledged,
+    LocalDateTime createdAt
+) {
+}
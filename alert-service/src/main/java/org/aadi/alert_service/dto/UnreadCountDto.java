@@ -0,0 +1,8 @@
+package org.aadi.alert_service.dto;
+
+public record UnreadCountDto(
+    Long userId,
+    long unacknowledged,
+    long unsent
+) {
+}
@@ -5,6 +5,7 @@ import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
+import jakarta.persistence.TableGenerator;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -20,8 +21,11 @@ import java.time.LocalDateTime;
 @Table(name = "alert")
 public class Alert {
 
+    // Ids are handed out in blocks from id_generator so inserts can be JDBC-batched
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "alert_id")
+    @TableGenerator(name = "alert_id", table = "id_generator", pkColumnName = "name",
+            valueColumnName = "next_val", pkColumnValue = "alert", allocationSize = 500)
     private Long id;
     private Long userId;
     private LocalDateTime createdAt;
@@ -37,4 +41,6 @@ public class Alert {
     private LocalDateTime timestamp;
     private boolean acknowledged;
     private String email;
+    /** When a replica last took this alert for emailing; stale claims are swept up again. */
+    private LocalDateTime emailClaimedAt;
 }
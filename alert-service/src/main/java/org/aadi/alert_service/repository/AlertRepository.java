@@ -1,12 +1,115 @@
 package org.aadi.alert_service.repository;
 
+import org.aadi.alert_service.dto.AlertSummaryDto;
 import org.aadi.alert_service.entity.Alert;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface AlertRepository  extends JpaRepository<Alert, Long> {
     List<Alert> findByUserId(Long userId);
+
+    /**
+     * A page of a user's alerts, newest first, strictly after the keyset position
+     * ({@code beforeCreatedAt}, {@code beforeId}) and no older than {@code from}. The
+     * position is a range seek on the {@code (user_id, created_at)} index, so a page costs
+     * the same however deep into the history it is. Null filters match everything.
+     */
+    @Query("""
+            select new org.aadi.alert_service.dto.AlertSummaryDto(
+                a.id, a.type, a.severity, a.message, a.value, a.threshold, a.device,
+                a.timestamp, a.acknowledged, a.createdAt)
+            from Alert a
+            where a.userId = :userId
+              and a.createdAt >= :from
+              and (a.createdAt < :beforeCreatedAt or (a.createdAt = :beforeCreatedAt and a.id < :beforeId))
+              and (:severity is null or a.severity = :severity)
+              and (:acknowledged is null or a.acknowledged = :acknowledged)
+            order by a.createdAt desc, a.id desc
+            """)
+    List<AlertSummaryDto> findPage(@Param("userId") Long userId,
+                                   @Param("from") LocalDateTime from,
+                                   @Param("beforeCreatedAt") LocalDateTime beforeCreatedAt,
+                                   @Param("beforeId") Long beforeId,
+                                   @Param("severity") String severity,
+                                   @Param("acknowledged") Boolean acknowledged,
+                                   Limit limit);
+
+    @Transactional
+    @Modifying
+    @Query("update Alert a set a.sent = true where a.id in :ids and a.sent = false")
+    int markSent(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Unsent alerts with an email address created in [{@code from}, {@code before}) whose
+     * email claim is missing or older than {@code staleBefore}, oldest first.
+     */
+    @Query("""
+            select a from Alert a
+            where a.sent = false
+              and a.createdAt >= :from and a.createdAt < :before
+              and a.email is not null and a.email <> ''
+              and (a.emailClaimedAt is null or a.emailClaimedAt < :staleBefore)
+            order by a.createdAt
+            """)
+    List<Alert> findUnsent(@Param("from") LocalDateTime from,
+                           @Param("before") LocalDateTime before,
+                           @Param("staleBefore") LocalDateTime staleBefore,
+                           Limit limit);
+
+    // Returns 1 if this caller won the claim, 0 if the alert was sent or claimed meanwhile
+    @Transactional
+    @Modifying
+    @Query("""
+            update Alert a set a.emailClaimedAt = :now
+            where a.id = :id and a.sent = false
+              and (a.emailClaimedAt is null or a.emailClaimedAt < :staleBefore)
+            """)
+    int claimEmail(@Param("id") Long id, @Param("now") LocalDateTime now, @Param("staleBefore") LocalDateTime staleBefore);
+
+    // Keeps the sweep away from alerts whose email was given up on until they are past its max age
+    @Transactional
+    @Modifying
+    @Query("update Alert a set a.emailClaimedAt = :until where a.id in :ids and a.sent = false")
+    int holdEmailClaims(@Param("ids") Collection<Long> ids, @Param("until") LocalDateTime until);
+
+    // Returns how many were still unacknowledged, for the unread counters
+    @Transactional
+    @Modifying
+    @Query("update Alert a set a.acknowledged = true where a.userId = :userId and a.id in :ids and a.acknowledged = false")
+    int acknowledge(@Param("userId") Long userId, @Param("ids") Collection<Long> ids);
+
+    @Transactional
+    @Modifying
+    @Query("update Alert a set a.acknowledged = true where a.userId = :userId and a.acknowledged = false")
+    int acknowledgeAll(@Param("userId") Long userId);
+
+    // Rows of (userId, unacknowledged, unsent) for every user with an open alert
+    @Query("""
+            select a.userId,
+                   sum(case when a.acknowledged = false then 1 else 0 end),
+                   sum(case when a.sent = false then 1 else 0 end)
+            from Alert a
+            where a.acknowledged = false or a.sent = false
+            group by a.userId
+            """)
+    List<Object[]> countOpenByUser();
+
+    // A single row of (unacknowledged, unsent) for one user; both are null if nothing is open
+    @Query("""
+            select sum(case when a.acknowledged = false then 1 else 0 end),
+                   sum(case when a.sent = false then 1 else 0 end)
+            from Alert a
+            where a.userId = :userId and (a.acknowledged = false or a.sent = false)
+            """)
+    List<Object[]> countOpenForUser(@Param("userId") Long userId);
 }
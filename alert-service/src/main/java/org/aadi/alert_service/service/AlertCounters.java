@@ -0,0 +1,145 @@
+package org.aadi.alert_service.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.alert_service.dto.UnreadCountDto;
+import org.aadi.alert_service.entity.Alert;
+import org.aadi.alert_service.repository.AlertRepository;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Per-user counts of unacknowledged and unsent alerts, kept in memory so the unread badge
+ * costs a map lookup. Rebuilt from one grouped query on startup (before the listener
+ * starts), then adjusted as new alerts are stored and emails delivered. Acknowledgements
+ * recount the user instead of applying a delta: an acknowledgement can cover alerts that
+ * are committed but not yet counted. Inserts and sent updates hold the read side of a lock
+ * until their delta is applied, and a recount takes the write side, so it never sees a
+ * committed change whose delta is still to come. A sent update that flags fewer alerts than
+ * were delivered (another replica or a sweep got to some first) recounts its users instead.
+ * Users with nothing open have no entry.
+ */
+@Slf4j
+@Service
+public class AlertCounters {
+
+    private final AlertRepository alertRepository;
+    private final Map<Long, Counts> counts = new ConcurrentHashMap<>();
+    private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+    public AlertCounters(AlertRepository alertRepository) {
+        this.alertRepository = alertRepository;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        final long startedAt = System.currentTimeMillis();
+        counts.clear();
+        for (Object[] row : alertRepository.countOpenByUser()) {
+            add((Long) row[0], ((Number) row[1]).longValue(), ((Number) row[2]).longValue());
+        }
+        log.info("Loaded unread alert counts of {} users in {} ms", counts.size(),
+                System.currentTimeMillis() - startedAt);
+    }
+
+    public UnreadCountDto get(Long userId) {
+        final Counts userCounts = counts.get(userId);
+        return userCounts == null
+                ? new UnreadCountDto(userId, 0, 0)
+                : new UnreadCountDto(userId, userCounts.unacknowledged(), userCounts.unsent());
+    }
+
+    /**
+     * Runs {@code store}, which must commit {@code alerts}, and counts them, with no recount
+     * in between.
+     */
+    public void store(List<Alert> alerts, Runnable store) {
+        storeLock.readLock().lock();
+        try {
+            store.run();
+            added(alerts);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    private void added(List<Alert> alerts) {
+        final Map<Long, long[]> byUser = new HashMap<>();
+        for (Alert alert : alerts) {
+            final long[] userCounts = byUser.computeIfAbsent(alert.getUserId(), userId -> new long[2]);
+            if (!alert.isAcknowledged()) {
+                userCounts[0]++;
+            }
+            if (!alert.isSent()) {
+                userCounts[1]++;
+            }
+        }
+        byUser.forEach((userId, userCounts) -> add(userId, userCounts[0], userCounts[1]));
+    }
+
+    /**
+     * Runs {@code markSent}, which must commit the sent flags and return how many alerts it
+     * flagged, and uncounts the delivered alerts of each user, with no recount in between.
+     * If it flagged fewer than were delivered, the users are recounted instead.
+     */
+    public void sent(Map<Long, Integer> alertsByUser, IntSupplier markSent) {
+        final int delivered = alertsByUser.values().stream().mapToInt(Integer::intValue).sum();
+        final int flagged;
+        storeLock.readLock().lock();
+        try {
+            flagged = markSent.getAsInt();
+            if (flagged == delivered) {
+                alertsByUser.forEach((userId, alerts) -> add(userId, 0, -alerts));
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        if (flagged != delivered) {
+            // Which users' alerts were already flagged is unknown, so none of them get a delta
+            log.debug("Flagged {} of {} delivered alerts as sent, recounting {} users",
+                    flagged, delivered, alertsByUser.size());
+            alertsByUser.keySet().forEach(this::recount);
+        }
+    }
+
+    /**
+     * Replaces the user's counts with a fresh count from the database.
+     */
+    public void recount(Long userId) {
+        storeLock.writeLock().lock();
+        try {
+            final List<Object[]> rows = alertRepository.countOpenForUser(userId);
+            final Object[] row = rows.isEmpty() ? null : rows.getFirst();
+            final long unacknowledged = row != null && row[0] != null ? ((Number) row[0]).longValue() : 0;
+            final long unsent = row != null && row[1] != null ? ((Number) row[1]).longValue() : 0;
+            if (unacknowledged == 0 && unsent == 0) {
+                counts.remove(userId);
+            } else {
+                counts.put(userId, new Counts(unacknowledged, unsent));
+            }
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private void add(Long userId, long unacknowledged, long unsent) {
+        if (userId == null || (unacknowledged == 0 && unsent == 0)) {
+            return;
+        }
+        counts.compute(userId, (id, current) -> {
+            final long newUnacknowledged = Math.max(0, (current != null ? current.unacknowledged() : 0) + unacknowledged);
+            final long newUnsent = Math.max(0, (current != null ? current.unsent() : 0) + unsent);
+            return newUnacknowledged == 0 && newUnsent == 0 ? null : new Counts(newUnacknowledged, newUnsent);
+        });
+    }
+
+    private record Counts(long unacknowledged, long unsent) {
+    }
+}
@@ -1,73 +1,194 @@
 package org.aadi.alert_service.service;
 
+import org.aadi.alert_service.dto.AlertPageDto;
+import org.aadi.alert_service.dto.AlertSummaryDto;
+import org.aadi.alert_service.dto.UnreadCountDto;
 import org.aadi.alert_service.entity.Alert;
 import org.aadi.alert_service.repository.AlertRepository;
 import org.aadi.kafka.event.AlertingEvent;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
 
 @Slf4j
 @Service
 public class AlertService {
 
-    private final EmailService emailService;
+    private final EmailDispatcher emailDispatcher;
     private final AlertRepository alertRepository;
+    private final AlertStreamRegistry alertStreamRegistry;
+    private final AlertCounters alertCounters;
+    private final int maxPageSize;
 
-    public AlertService(EmailService emailService, AlertRepository alertRepository) {
-        this.emailService = emailService;
+    // Bounds of a MySQL TIMESTAMP/DATETIME, used when the caller gives no time range
+    private static final LocalDateTime EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final LocalDateTime LATEST = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    public AlertService(EmailDispatcher emailDispatcher,
+                        AlertRepository alertRepository,
+                        AlertStreamRegistry alertStreamRegistry,
+                        AlertCounters alertCounters,
+                        @Value("${alert.history.max-page-size:200}") int maxPageSize) {
+        this.emailDispatcher = emailDispatcher;
         this.alertRepository = alertRepository;
+        this.alertStreamRegistry = alertStreamRegistry;
+        this.alertCounters = alertCounters;
+        this.maxPageSize = maxPageSize;
     }
 
-    @KafkaListener(topics = "energy-alerts", groupId = "alert-service")
-    public void energyUsageAlertEvent(AlertingEvent alertingEvent) {
-        log.info("Received alert event: {}", alertingEvent);
+    /**
+     * Persists a whole poll of alerts with one batched insert (ids come pre-allocated in
+     * blocks, see {@link Alert}), pushes them to open alert streams and hands them to the
+     * {@link EmailDispatcher}, which emails them in the background and flags them as sent
+     * once delivered.
+     */
+    @KafkaListener(topics = "energy-alerts", groupId = "alert-service", batch = "true")
+    public void energyUsageAlertEvents(List<AlertingEvent> alertingEvents) {
+        log.info("Received {} alert events", alertingEvents.size());
 
-        // Save alert to database
-        Alert alert = Alert.builder()
+        final List<Alert> alerts = new ArrayList<>(alertingEvents.size());
+        for (AlertingEvent alertingEvent : alertingEvents) {
+            if (alertingEvent == null) {
+                continue;
+            }
+            alerts.add(toAlert(alertingEvent));
+        }
+        alertCounters.store(alerts, () -> alertRepository.saveAll(alerts));
+        log.info("Saved {} alerts to database", alerts.size());
+
+        alertStreamRegistry.publish(alerts);
+        emailDispatcher.enqueue(alerts);
+    }
+
+    private static Alert toAlert(AlertingEvent alertingEvent) {
+        // Anomalies are device-level and carry the baseline they deviated from
+        final String type = alertingEvent.getType() != null ? alertingEvent.getType() : AlertingEvent.TYPE_THRESHOLD;
+        final boolean anomaly = AlertingEvent.TYPE_ANOMALY.equals(type);
+        final boolean hasEmail = alertingEvent.getEmail() != null && !alertingEvent.getEmail().isEmpty();
+        final LocalDateTime now = LocalDateTime.now();
+        return Alert.builder()
                 .userId(alertingEvent.getUserId())
-                .type("energy_threshold")
-                .severity("high")
+                .type(type)
+                .severity(anomaly ? "medium" : "high")
                 .message(alertingEvent.getMessage())
                 .value(alertingEvent.getEnergyConsumed())
                 .threshold(alertingEvent.getThreshold())
+                .expectedValue(alertingEvent.getExpectedValue())
+                .averageValue(alertingEvent.getAverageValue())
+                .device(alertingEvent.getDevice())
                 .timestamp(java.time.LocalDateTime.now())
                 .acknowledged(false)
                 .email(alertingEvent.getEmail())
                 .sent(false)
-                .createdAt(java.time.LocalDateTime.now())
+                .createdAt(now)
+                // Claimed by this replica's EmailDispatcher until the sweep considers it stale
+                .emailClaimedAt(hasEmail ? now : null)
                 .build();
-        
-        alertRepository.save(alert);
-        log.info("Saved alert to database for user {}", alertingEvent.getUserId());
-
-        // Only send email if user has email notifications enabled
-        if (alertingEvent.getEmail() != null && !alertingEvent.getEmail().isEmpty()) {
-            log.info("Sending email alert to user {} at {}", alertingEvent.getUserId(), alertingEvent.getEmail());
-            final String subject = "Energy Usage Alert for User "
-                    + alertingEvent.getUserId();
-            final String message = "Alert: " + alertingEvent.getMessage() +
-                    "\nThreshold: " + alertingEvent.getThreshold() +
-                    "\nEnergy Consumed: " + alertingEvent.getEnergyConsumed();
-            try {
-                emailService.sendEmail(alertingEvent.getEmail(),
-                        subject,
-                        message,
-                        alertingEvent.getUserId());
-                alert.setSent(true);
-                alertRepository.save(alert);
-                log.info("Email sent successfully to user {}", alertingEvent.getUserId());
-            } catch (Exception e) {
-                log.error("Failed to send email to user {}: {}", alertingEvent.getUserId(), e.getMessage());
-            }
-        } else {
-            log.info("Email notifications disabled for user {} - skipping email", alertingEvent.getUserId());
-        }
     }
 
     public List<Alert> getAlertsForUser(Long userId) {
         return alertRepository.findByUserId(userId);
     }
+
+    public UnreadCountDto getUnreadCount(Long userId) {
+        return alertCounters.get(userId);
+    }
+
+    /**
+     * Acknowledges the given alerts of the user and returns how many were still open.
+     */
+    public int acknowledge(Long userId, Collection<Long> alertIds) {
+        if (alertIds.isEmpty()) {
+            return 0;
+        }
+        final int acknowledged = alertRepository.acknowledge(userId, alertIds);
+        if (acknowledged > 0) {
+            alertCounters.recount(userId);
+        }
+        return acknowledged;
+    }
+
+    public int acknowledgeAll(Long userId) {
+        final int acknowledged = alertRepository.acknowledgeAll(userId);
+        if (acknowledged > 0) {
+            alertCounters.recount(userId);
+        }
+        return acknowledged;
+    }
+
+    /**
+     * One page of a user's alert history, newest first. {@code cursor} is the
+     * {@code nextCursor} of the previous page (null for the first page); {@code from} is
+     * inclusive and {@code to} exclusive. Throws {@link IllegalArgumentException} on a
+     * malformed cursor or an out-of-range limit.
+     */
+    public AlertPageDto getAlertPage(Long userId,
+                                     String cursor,
+                                     int limit,
+                                     String severity,
+                                     Boolean acknowledged,
+                                     Instant from,
+                                     Instant to) {
+        if (limit < 1 || limit > maxPageSize) {
+            throw new IllegalArgumentException("limit must be between 1 and " + maxPageSize);
+        }
+        // createdAt is stored in the service's local time
+        final LocalDateTime start = from != null ? LocalDateTime.ofInstant(from, ZoneId.systemDefault()) : EARLIEST;
+        LocalDateTime beforeCreatedAt = to != null ? LocalDateTime.ofInstant(to, ZoneId.systemDefault()) : LATEST;
+        long beforeId = Long.MIN_VALUE;
+        if (cursor != null && !cursor.isBlank()) {
+            final Cursor position = Cursor.decode(cursor);
+            if (position.createdAt().isBefore(beforeCreatedAt)) {
+                beforeCreatedAt = position.createdAt();
+                beforeId = position.id();
+            }
+        }
+
+        // One extra row tells whether there is a next page
+        final List<AlertSummaryDto> rows = alertRepository.findPage(userId, start, beforeCreatedAt, beforeId,
+                severity, acknowledged, Limit.of(limit + 1));
+        if (rows.size() <= limit) {
+            return AlertPageDto.builder().alerts(rows).build();
+        }
+        final List<AlertSummaryDto> page = rows.subList(0, limit);
+        final AlertSummaryDto last = page.getLast();
+        return AlertPageDto.builder()
+                .alerts(List.copyOf(page))
+                .nextCursor(new Cursor(last.createdAt(), last.id()).encode())
+                .build();
+    }
+
+    /**
+     * Keyset position: the (createdAt, id) of the last alert returned, as an opaque token.
+     */
+    private record Cursor(LocalDateTime createdAt, long id) {
+
+        String encode() {
+            final String raw = createdAt + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String token) {
+            try {
+                final String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+                final int separator = raw.lastIndexOf('|');
+                return new Cursor(LocalDateTime.parse(raw.substring(0, separator)),
+                        Long.parseLong(raw.substring(separator + 1)));
+            } catch (IllegalArgumentException | DateTimeParseException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor", e);
+            }
+        }
+    }
 }
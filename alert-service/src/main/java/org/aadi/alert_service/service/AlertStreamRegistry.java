@@ -0,0 +1,360 @@
+package org.aadi.alert_service.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.alert_service.dto.AlertSummaryDto;
+import org.aadi.alert_service.entity.Alert;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-user fan-out of newly stored alerts to SSE subscribers.
+ * <p>
+ * Subscribers are async requests, so an idle one holds no thread. Each has a bounded queue
+ * of pending events; publishing only enqueues, and a small writer pool drains a queue
+ * whenever it has events, at most one writer per subscriber at a time. A subscriber whose
+ * queue overflows (its client reads slower than alerts or heartbeats arrive) is evicted;
+ * the client's EventSource reconnects. A comment is sent every
+ * {@code alert.stream.heartbeat-interval} so proxies keep idle connections open and dead
+ * ones are noticed.
+ * <p>
+ * Writes block once a client stops reading and its socket buffer is full, and a blocked
+ * write cannot be interrupted. A watchdog therefore evicts any subscriber whose write has
+ * been running longer than {@code alert.stream.write-timeout} and adds a writer thread in
+ * place of the stuck one, so other streams keep flowing; the thread is given back once the
+ * container's own socket timeout fails the write. At most
+ * {@code alert.stream.max-stalled-writers} stuck writers are replaced.
+ */
+@Slf4j
+@Service
+public class AlertStreamRegistry {
+
+    private static final Object HEARTBEAT = new Object();
+
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final int maxSubscribers;
+    private final int maxPerUser;
+    private final int queueCapacity;
+    private final long timeoutMillis;
+    private final long writeTimeoutNanos;
+    private final int maxStalledWriters;
+    // Guarded by this
+    private int stalledWriters;
+
+    private final ThreadPoolExecutor writers;
+    private final ScheduledExecutorService heartbeats;
+
+    public AlertStreamRegistry(@Value("${alert.stream.max-subscribers:10000}") int maxSubscribers,
+                               @Value("${alert.stream.max-per-user:5}") int maxPerUser,
+                               @Value("${alert.stream.queue-capacity:64}") int queueCapacity,
+                               @Value("${alert.stream.timeout:30m}") Duration timeout,
+                               @Value("${alert.stream.heartbeat-interval:15s}") Duration heartbeatInterval,
+                               @Value("${alert.stream.writer-threads:4}") int writerThreads,
+                               @Value("${alert.stream.write-timeout:5s}") Duration writeTimeout,
+                               @Value("${alert.stream.max-stalled-writers:32}") int maxStalledWriters) {
+        this.maxSubscribers = maxSubscribers;
+        this.maxPerUser = maxPerUser;
+        this.queueCapacity = queueCapacity;
+        this.timeoutMillis = timeout.toMillis();
+        this.writeTimeoutNanos = writeTimeout.toNanos();
+        this.maxStalledWriters = maxStalledWriters;
+
+        // At most one queued drain per subscriber, so the task queue is bounded by maxSubscribers
+        AtomicInteger threadCount = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(writerThreads, writerThreads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "alert-stream-writer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "alert-stream-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long heartbeatMillis = Math.max(1, heartbeatInterval.toMillis());
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        final long watchdogMillis = Math.max(1, writeTimeout.toMillis() / 2);
+        heartbeats.scheduleWithFixedDelay(this::evictStalled, watchdogMillis, watchdogMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a stream for {@code userId}, or returns null if the subscriber limits are
+     * reached.
+     */
+    public SseEmitter subscribe(Long userId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            log.warn("Rejecting alert stream for user {}: {} subscribers connected", userId, maxSubscribers);
+            return null;
+        }
+        final Subscriber subscriber = new Subscriber(userId, newEmitter(timeoutMillis), queueCapacity);
+        while (true) {
+            final Set<Subscriber> userSubscribers = subscribers.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet());
+            synchronized (userSubscribers) {
+                if (subscribers.get(userId) != userSubscribers) {
+                    // Dropped by remove() as its last subscriber left; take the fresh set
+                    continue;
+                }
+                if (userSubscribers.size() >= maxPerUser) {
+                    subscriberCount.decrementAndGet();
+                    log.warn("Rejecting alert stream for user {}: {} streams already open", userId, maxPerUser);
+                    return null;
+                }
+                userSubscribers.add(subscriber);
+                break;
+            }
+        }
+        subscriber.emitter.onCompletion(() -> remove(subscriber));
+        subscriber.emitter.onTimeout(() -> remove(subscriber));
+        subscriber.emitter.onError(e -> remove(subscriber));
+        // Flushes the response headers right away
+        offer(subscriber, HEARTBEAT);
+        log.debug("User {} subscribed to alert stream", userId);
+        return subscriber.emitter;
+    }
+
+    /**
+     * Pushes stored alerts to their users' subscribers. Never blocks.
+     */
+    public void publish(List<Alert> alerts) {
+        if (subscriberCount.get() == 0) {
+            return;
+        }
+        for (Alert alert : alerts) {
+            final Set<Subscriber> userSubscribers = subscribers.get(alert.getUserId());
+            if (userSubscribers == null || userSubscribers.isEmpty()) {
+                continue;
+            }
+            final AlertSummaryDto event = toSummary(alert);
+            for (Subscriber subscriber : userSubscribers) {
+                offer(subscriber, event);
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return subscriberCount.get();
+    }
+
+    private void heartbeat() {
+        try {
+            for (Set<Subscriber> userSubscribers : subscribers.values()) {
+                for (Subscriber subscriber : userSubscribers) {
+                    offer(subscriber, HEARTBEAT);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Alert stream heartbeat failed", e);
+        }
+    }
+
+    private void evictStalled() {
+        try {
+            final long now = System.nanoTime();
+            for (Set<Subscriber> userSubscribers : subscribers.values()) {
+                for (Subscriber subscriber : userSubscribers) {
+                    if (markStalled(subscriber, now)) {
+                        log.info("Evicting alert stream subscriber of user {}: write blocked for over {} ms",
+                                subscriber.userId, TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos));
+                        evict(subscriber);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Alert stream watchdog failed", e);
+        }
+    }
+
+    /**
+     * Returns whether the subscriber's current write is past the deadline, adding a writer
+     * in its place. Paired with {@link #releaseStalled} under the same lock so a write
+     * returning meanwhile never leaves an extra thread behind.
+     */
+    private synchronized boolean markStalled(Subscriber subscriber, long now) {
+        final long startedAt = subscriber.writeStartedAt;
+        if (startedAt == 0 || now - startedAt <= writeTimeoutNanos || subscriber.stalled) {
+            return false;
+        }
+        subscriber.stalled = replaceWriter(1);
+        return true;
+    }
+
+    private synchronized void releaseStalled(Subscriber subscriber) {
+        if (subscriber.stalled) {
+            subscriber.stalled = false;
+            replaceWriter(-1);
+        }
+    }
+
+    /** Writer threads currently added in place of blocked ones. */
+    synchronized int stalledWriters() {
+        return stalledWriters;
+    }
+
+    /**
+     * Grows (positive delta) or shrinks the writer pool around writers stuck in a blocked
+     * write. Returns false if no more stuck writers may be replaced.
+     */
+    private synchronized boolean replaceWriter(int delta) {
+        if (delta > 0 && stalledWriters >= maxStalledWriters) {
+            log.warn("{} alert stream writers are blocked, not adding more", stalledWriters);
+            return false;
+        }
+        stalledWriters += delta;
+        // The maximum has to stay at or above the core size while both change
+        if (delta > 0) {
+            writers.setMaximumPoolSize(writers.getMaximumPoolSize() + delta);
+            writers.setCorePoolSize(writers.getCorePoolSize() + delta);
+        } else {
+            writers.setCorePoolSize(writers.getCorePoolSize() + delta);
+            writers.setMaximumPoolSize(writers.getMaximumPoolSize() + delta);
+        }
+        return true;
+    }
+
+    private void offer(Subscriber subscriber, Object event) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (!subscriber.queue.offer(event)) {
+            log.info("Evicting slow alert stream subscriber of user {}", subscriber.userId);
+            evict(subscriber);
+            return;
+        }
+        scheduleDrain(subscriber);
+    }
+
+    private void scheduleDrain(Subscriber subscriber) {
+        if (subscriber.draining.compareAndSet(false, true)) {
+            try {
+                writers.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException e) {
+                subscriber.draining.set(false);
+            }
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            Object event;
+            while (!subscriber.closed && (event = subscriber.queue.poll()) != null) {
+                subscriber.writeStartedAt = System.nanoTime();
+                if (event == HEARTBEAT) {
+                    subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+                } else {
+                    final AlertSummaryDto alert = (AlertSummaryDto) event;
+                    subscriber.emitter.send(SseEmitter.event()
+                            .id(String.valueOf(alert.id()))
+                            .name("alert")
+                            .data(alert));
+                }
+                subscriber.writeStartedAt = 0;
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Alert stream of user {} closed: {}", subscriber.userId, e.getMessage());
+            subscriber.closed = true;
+            remove(subscriber);
+        } finally {
+            subscriber.writeStartedAt = 0;
+            subscriber.draining.set(false);
+        }
+        releaseStalled(subscriber);
+        if (subscriber.closed) {
+            // Completing here rather than in evict() keeps a blocked write from blocking the evicting thread
+            complete(subscriber);
+        } else if (!subscriber.queue.isEmpty()) {
+            scheduleDrain(subscriber);
+        }
+    }
+
+    private void evict(Subscriber subscriber) {
+        subscriber.closed = true;
+        subscriber.queue.clear();
+        remove(subscriber);
+        scheduleDrain(subscriber);
+    }
+
+    private void complete(Subscriber subscriber) {
+        try {
+            subscriber.emitter.complete();
+        } catch (RuntimeException e) {
+            log.debug("Failed to complete alert stream of user {}: {}", subscriber.userId, e.getMessage());
+        }
+    }
+
+    private void remove(Subscriber subscriber) {
+        final Set<Subscriber> userSubscribers = subscribers.get(subscriber.userId);
+        if (userSubscribers == null) {
+            return;
+        }
+        synchronized (userSubscribers) {
+            if (userSubscribers.remove(subscriber)) {
+                subscriberCount.decrementAndGet();
+                if (userSubscribers.isEmpty()) {
+                    subscribers.remove(subscriber.userId, userSubscribers);
+                }
+            }
+        }
+    }
+
+    SseEmitter newEmitter(long timeoutMillis) {
+        return new SseEmitter(timeoutMillis);
+    }
+
+    private static AlertSummaryDto toSummary(Alert alert) {
+        return new AlertSummaryDto(alert.getId(), alert.getType(), alert.getSeverity(), alert.getMessage(),
+                alert.getValue(), alert.getThreshold(), alert.getDevice(), alert.getTimestamp(),
+                alert.isAcknowledged(), alert.getCreatedAt());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        for (Set<Subscriber> userSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : userSubscribers) {
+                subscriber.closed = true;
+                complete(subscriber);
+            }
+        }
+        writers.shutdownNow();
+    }
+
+    private static final class Subscriber {
+        private final Long userId;
+        private final SseEmitter emitter;
+        private final Queue<Object> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+        // System.nanoTime() when the current write started, 0 while not writing
+        private volatile long writeStartedAt;
+        // Set when a writer thread was added in place of this one's stuck writer; guarded by the registry
+        private boolean stalled;
+
+        private Subscriber(Long userId, SseEmitter emitter, int queueCapacity) {
+            this.userId = userId;
+            this.emitter = emitter;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+    }
+}
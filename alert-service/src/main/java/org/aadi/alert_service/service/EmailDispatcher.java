@@ -0,0 +1,350 @@
+package org.aadi.alert_service.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.alert_service.entity.Alert;
+import org.aadi.alert_service.repository.AlertRepository;
+import org.aadi.kafka.event.AlertingEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers alert emails off the Kafka listener thread.
+ * <p>
+ * Alerts are collected per user and sent as one digest once the first of them is
+ * {@code alert.email.digest-window} old. Due digests are handed in chunks of
+ * {@code alert.email.batch-size} to a bounded sender pool; each chunk goes out over a single
+ * SMTP connection and the delivered alerts are flagged as sent with one update. Failed
+ * digests are retried with exponential backoff up to {@code alert.email.retry.max-attempts}.
+ * At most {@code alert.email.max-pending} alerts wait for a digest; beyond that new alerts
+ * are dropped from email, so a stalled SMTP server never pushes back on consumption.
+ * <p>
+ * Pending digests and retries only live in memory. Every alert with an email is stored
+ * with an email claim, and every {@code alert.email.sweep.interval} (and right after
+ * startup) unsent alerts whose claim is older than {@code alert.email.sweep.claim-timeout}
+ * are claimed again and queued; that recovers alerts lost to a crash, a redeploy or an
+ * overflow. Claims are taken with a conditional update, so replicas never sweep up the same
+ * alert twice. Alerts older than {@code alert.email.sweep.max-age} are no longer emailed,
+ * and a digest that exhausts its retries has its claim pushed out by that age, so the sweep
+ * leaves it alone for good.
+ */
+@Slf4j
+@Service
+public class EmailDispatcher {
+
+    private final EmailService emailService;
+    private final AlertRepository alertRepository;
+    private final AlertCounters alertCounters;
+    private final long digestWindowMillis;
+    private final int batchSize;
+    private final int maxPending;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final Duration claimTimeout;
+    private final Duration sweepMaxAge;
+    private final int sweepBatchSize;
+
+    // Guarded by this
+    private final Map<Long, Digest> pending = new LinkedHashMap<>();
+    private int pendingAlerts;
+
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor senders;
+
+    public EmailDispatcher(EmailService emailService,
+                           AlertRepository alertRepository,
+                           AlertCounters alertCounters,
+                           @Value("${alert.email.digest-window:1m}") Duration digestWindow,
+                           @Value("${alert.email.flush-interval:5s}") Duration flushInterval,
+                           @Value("${alert.email.batch-size:50}") int batchSize,
+                           @Value("${alert.email.max-pending:10000}") int maxPending,
+                           @Value("${alert.email.sender-threads:2}") int senderThreads,
+                           @Value("${alert.email.queue-capacity:32}") int queueCapacity,
+                           @Value("${alert.email.retry.max-attempts:5}") int maxAttempts,
+                           @Value("${alert.email.retry.initial-backoff:10s}") Duration initialBackoff,
+                           @Value("${alert.email.sweep.interval:1m}") Duration sweepInterval,
+                           @Value("${alert.email.sweep.claim-timeout:15m}") Duration claimTimeout,
+                           @Value("${alert.email.sweep.max-age:1d}") Duration sweepMaxAge,
+                           @Value("${alert.email.sweep.batch-size:500}") int sweepBatchSize) {
+        this.emailService = emailService;
+        this.alertRepository = alertRepository;
+        this.alertCounters = alertCounters;
+        this.digestWindowMillis = digestWindow.toMillis();
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPending = maxPending;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(1, initialBackoff.toMillis());
+        this.claimTimeout = claimTimeout;
+        this.sweepMaxAge = sweepMaxAge;
+        this.sweepBatchSize = Math.max(1, sweepBatchSize);
+
+        // A claim must outlive the digest window and every retry, or live alerts get swept twice
+        final long retrySpanMillis = initialBackoffMillis * ((1L << Math.min(this.maxAttempts - 1, 20)) - 1);
+        if (claimTimeout.toMillis() <= digestWindowMillis + retrySpanMillis) {
+            log.warn("alert.email.sweep.claim-timeout {} is shorter than the digest window plus retries ({} ms); "
+                    + "alerts may be emailed twice", claimTimeout, digestWindowMillis + retrySpanMillis);
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadCount = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(senderThreads, senderThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "email-sender-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        final long flushMillis = Math.max(1, flushInterval.toMillis());
+        scheduler.scheduleWithFixedDelay(() -> flush(false), flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        final long sweepMillis = Math.max(1, sweepInterval.toMillis());
+        scheduler.scheduleWithFixedDelay(this::sweep, flushMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the alerts of users with email notifications enabled. Never blocks.
+     */
+    public void enqueue(List<Alert> alerts) {
+        final long now = System.currentTimeMillis();
+        int dropped = 0;
+        synchronized (this) {
+            for (Alert alert : alerts) {
+                if (alert.getEmail() == null || alert.getEmail().isEmpty()) {
+                    log.debug("Email notifications disabled for user {} - skipping email", alert.getUserId());
+                    continue;
+                }
+                if (pendingAlerts >= maxPending) {
+                    dropped++;
+                    continue;
+                }
+                pending.computeIfAbsent(alert.getUserId(), userId -> new Digest(userId, now)).add(alert);
+                pendingAlerts++;
+            }
+        }
+        if (dropped > 0) {
+            log.warn("Email queue full ({} alerts pending), {} alerts will not be emailed", maxPending, dropped);
+        }
+    }
+
+    /**
+     * Claims unsent alerts whose previous claim went stale and queues them, up to the room
+     * left in the pending queue.
+     */
+    private void sweep() {
+        try {
+            final int room;
+            synchronized (this) {
+                room = Math.min(sweepBatchSize, maxPending - pendingAlerts);
+            }
+            if (room <= 0) {
+                return;
+            }
+            final LocalDateTime now = LocalDateTime.now();
+            final LocalDateTime staleBefore = now.minus(claimTimeout);
+            // Alerts are claimed when created, so nothing newer than staleBefore can be stale
+            final List<Alert> unsent = alertRepository.findUnsent(now.minus(sweepMaxAge), staleBefore, staleBefore,
+                    Limit.of(room));
+            final List<Alert> claimed = new ArrayList<>(unsent.size());
+            for (Alert alert : unsent) {
+                if (alertRepository.claimEmail(alert.getId(), now, staleBefore) == 1) {
+                    claimed.add(alert);
+                }
+            }
+            if (!claimed.isEmpty()) {
+                log.info("Re-queued {} unsent alerts for email", claimed.size());
+                enqueue(claimed);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to sweep unsent alerts", e);
+        }
+    }
+
+    private void flush(boolean all) {
+        try {
+            final long dueBefore = System.currentTimeMillis() - digestWindowMillis;
+            final List<Digest> due = new ArrayList<>();
+            synchronized (this) {
+                for (Iterator<Digest> it = pending.values().iterator(); it.hasNext(); ) {
+                    final Digest digest = it.next();
+                    if (all || digest.openedAt <= dueBefore) {
+                        it.remove();
+                        pendingAlerts -= digest.alerts.size();
+                        due.add(digest);
+                    }
+                }
+            }
+            for (int from = 0; from < due.size(); from += batchSize) {
+                submit(new ArrayList<>(due.subList(from, Math.min(from + batchSize, due.size()))));
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to flush email digests", e);
+        }
+    }
+
+    private void submit(List<Digest> chunk) {
+        try {
+            senders.execute(() -> send(chunk));
+        } catch (RejectedExecutionException e) {
+            // Senders are saturated: hold the chunk back rather than block the flush thread
+            schedule(chunk, initialBackoffMillis);
+        }
+    }
+
+    private void schedule(List<Digest> chunk, long delayMillis) {
+        try {
+            scheduler.schedule(() -> submit(chunk), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Shutting down, {} email digests will not be sent", chunk.size());
+        }
+    }
+
+    private void send(List<Digest> chunk) {
+        final List<SimpleMailMessage> messages = new ArrayList<>(chunk.size());
+        for (Digest digest : chunk) {
+            messages.add(compose(digest));
+        }
+        final Set<SimpleMailMessage> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        failed.addAll(emailService.sendAll(messages));
+
+        final List<Long> sentIds = new ArrayList<>();
+        final List<Digest> delivered = new ArrayList<>();
+        final List<Long> abandonedIds = new ArrayList<>();
+        // Swept digests join with their own attempt count, so each count gets its own backoff
+        final Map<Integer, List<Digest>> retries = new TreeMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            final Digest digest = chunk.get(i);
+            if (!failed.contains(messages.get(i))) {
+                for (Alert alert : digest.alerts) {
+                    sentIds.add(alert.getId());
+                }
+                delivered.add(digest);
+            } else if (++digest.attempts < maxAttempts) {
+                retries.computeIfAbsent(digest.attempts, attempts -> new ArrayList<>()).add(digest);
+            } else {
+                log.error("Giving up emailing {} alerts to user {} after {} attempts",
+                        digest.alerts.size(), digest.userId, digest.attempts);
+                for (Alert alert : digest.alerts) {
+                    abandonedIds.add(alert.getId());
+                }
+            }
+        }
+        if (!sentIds.isEmpty()) {
+            try {
+                final Map<Long, Integer> sentByUser = new HashMap<>();
+                for (Digest digest : delivered) {
+                    sentByUser.merge(digest.userId, digest.alerts.size(), Integer::sum);
+                }
+                alertCounters.sent(sentByUser, () -> alertRepository.markSent(sentIds));
+            } catch (RuntimeException e) {
+                log.error("Failed to mark {} alerts as sent", sentIds.size(), e);
+            }
+            log.info("Emailed {} alerts in {} digests", sentIds.size(), delivered.size());
+        }
+        if (!abandonedIds.isEmpty()) {
+            try {
+                // Held until the alerts are past max-age, which the sweep no longer looks at
+                alertRepository.holdEmailClaims(abandonedIds, LocalDateTime.now().plus(sweepMaxAge));
+            } catch (RuntimeException e) {
+                log.error("Failed to record {} alerts as given up; a sweep will retry them", abandonedIds.size(), e);
+            }
+        }
+        retries.forEach((attempt, digests) -> {
+            final long delayMillis = initialBackoffMillis << Math.min(attempt - 1, 20);
+            log.warn("Retrying {} email digests in {} ms (attempt {})", digests.size(), delayMillis, attempt + 1);
+            schedule(digests, delayMillis);
+        });
+    }
+
+    private SimpleMailMessage compose(Digest digest) {
+        final Alert latest = digest.alerts.getLast();
+        if (digest.alerts.size() == 1) {
+            return emailService.message(latest.getEmail(),
+                    "Energy Usage Alert for User " + digest.userId,
+                    describe(latest));
+        }
+        final StringBuilder body = new StringBuilder();
+        for (Alert alert : digest.alerts) {
+            if (!body.isEmpty()) {
+                body.append("\n\n");
+            }
+            body.append(alert.getTimestamp()).append('\n').append(describe(alert));
+        }
+        return emailService.message(latest.getEmail(),
+                digest.alerts.size() + " Energy Usage Alerts for User " + digest.userId,
+                body.toString());
+    }
+
+    private static String describe(Alert alert) {
+        String message = "Alert: " + alert.getMessage() +
+                "\nThreshold: " + alert.getThreshold() +
+                "\nEnergy Consumed: " + alert.getValue();
+        if (AlertingEvent.TYPE_ANOMALY.equals(alert.getType())) {
+            message += "\nExpected: " + alert.getExpectedValue() +
+                    "\nAverage: " + alert.getAverageValue();
+        }
+        return message;
+    }
+
+    /**
+     * Sends whatever is still waiting for its digest window, then lets the senders finish.
+     * Retries still waiting for their backoff are abandoned; those alerts stay unsent until
+     * a sweep picks them up again.
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        flush(true);
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(30, TimeUnit.SECONDS)) {
+                senders.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Digest {
+        private final Long userId;
+        private final long openedAt;
+        private final List<Alert> alerts = new ArrayList<>();
+        private int attempts;
+
+        private Digest(Long userId, long openedAt) {
+            this.userId = userId;
+            this.openedAt = openedAt;
+        }
+
+        private void add(Alert alert) {
+            alerts.add(alert);
+        }
+    }
+}
@@ -2,10 +2,15 @@ package org.aadi.alert_service.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
 @Slf4j
 @Service
 public class EmailService {
@@ -16,24 +21,44 @@ public class EmailService {
         this.mailSender = mailSender;
     }
 
-    public void sendEmail(String to,
-                          String subject,
-                          String body,
-                          Long userId) {
-        log.info("Sending email to: {}, subject: {}", to, subject);
-
+    public SimpleMailMessage message(String to, String subject, String body) {
         SimpleMailMessage message = new SimpleMailMessage();
         message.setTo(to);
         message.setFrom("noreply@watt-tracker.com");
         message.setSubject(subject);
         message.setText(body);
+        return message;
+    }
 
+    /**
+     * Sends all messages over a single SMTP connection and returns the ones that could not
+     * be delivered (all of them if the connection itself failed).
+     */
+    public List<SimpleMailMessage> sendAll(List<SimpleMailMessage> messages) {
+        if (messages.isEmpty()) {
+            return List.of();
+        }
         try {
-            mailSender.send(message);
-            log.info("Email sent successfully to: {}", to);
+            mailSender.send(messages.toArray(new SimpleMailMessage[0]));
+            log.debug("Sent {} emails", messages.size());
+            return List.of();
+        } catch (MailSendException e) {
+            final Set<Object> failed = e.getFailedMessages().keySet();
+            if (failed.isEmpty()) {
+                log.warn("Failed to send {} emails: {}", messages.size(), e.getMessage());
+                return messages;
+            }
+            log.warn("Failed to send {} of {} emails: {}", failed.size(), messages.size(), e.getMessage());
+            final List<SimpleMailMessage> undelivered = new ArrayList<>(failed.size());
+            for (SimpleMailMessage message : messages) {
+                if (failed.contains(message)) {
+                    undelivered.add(message);
+                }
+            }
+            return undelivered;
         } catch (MailException e) {
-            log.error("Failed to send email to: {}", to, e);
-            throw e; // Re-throw to let the caller handle the failure
+            log.warn("Failed to send {} emails: {}", messages.size(), e.getMessage());
+            return messages;
         }
     }
 }
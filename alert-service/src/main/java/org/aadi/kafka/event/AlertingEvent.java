@@ -10,9 +10,18 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 @Builder
 public class AlertingEvent {
+    public static final String TYPE_THRESHOLD = "energy_threshold";
+    public static final String TYPE_ANOMALY = "energy_anomaly";
+
     private Long userId;
     private String message;
     private double threshold;
     private double energyConsumed;
     private String email;
+    // Absent on events from older producers, which only sent threshold alerts
+    private String type;
+    private Long deviceId;
+    private String device;
+    private Double expectedValue;
+    private Double averageValue;
 }
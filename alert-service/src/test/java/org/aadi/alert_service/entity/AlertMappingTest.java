@@ -0,0 +1,77 @@
+package org.aadi.alert_service.entity;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.enhanced.PooledLoOptimizer;
+import org.hibernate.id.enhanced.TableGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Boots Hibernate against the JPA settings in application.properties, without a database,
+ * to check that alerts get ids in blocks and are inserted in batches.
+ */
+class AlertMappingTest {
+
+    private static final String JPA_PREFIX = "spring.jpa.properties.";
+
+    private StandardServiceRegistry registry;
+    private SessionFactoryImplementor sessionFactory;
+
+    @BeforeEach
+    void bootHibernate() throws IOException {
+        final StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder()
+                .applySetting(AvailableSettings.DIALECT, MySQLDialect.class.getName())
+                .applySetting(AvailableSettings.ALLOW_METADATA_ON_BOOT, false);
+        final Properties properties = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/application.properties")) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(JPA_PREFIX)) {
+                builder.applySetting(name.substring(JPA_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+        registry = builder.build();
+        final SessionFactory built = new MetadataSources(registry)
+                .addAnnotatedClass(Alert.class)
+                .buildMetadata()
+                .buildSessionFactory();
+        sessionFactory = built.unwrap(SessionFactoryImplementor.class);
+    }
+
+    @AfterEach
+    void close() {
+        sessionFactory.close();
+        StandardServiceRegistryBuilder.destroy(registry);
+    }
+
+    @Test
+    void allocatesIdsInPooledBlocksOfTheBatchSize() {
+        final TableGenerator generator = (TableGenerator) sessionFactory.getMappingMetamodel()
+                .getEntityDescriptor(Alert.class)
+                .getGenerator();
+
+        assertThat(generator.getTableName()).isEqualTo("id_generator");
+        assertThat(generator.getIncrementSize()).isEqualTo(500);
+        assertThat(generator.getOptimizer()).isInstanceOf(PooledLoOptimizer.class);
+    }
+
+    @Test
+    void insertsInOrderedJdbcBatches() {
+        assertThat(sessionFactory.getSessionFactoryOptions().getJdbcBatchSize()).isEqualTo(500);
+        assertThat(sessionFactory.getSessionFactoryOptions().isOrderInsertsEnabled()).isTrue();
+    }
+}
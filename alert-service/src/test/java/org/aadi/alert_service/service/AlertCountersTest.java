@@ -0,0 +1,103 @@
+package org.aadi.alert_service.service;
+
+import org.aadi.alert_service.dto.UnreadCountDto;
+import org.aadi.alert_service.entity.Alert;
+import org.aadi.alert_service.repository.AlertRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AlertCountersTest {
+
+    private final AlertRepository alertRepository = mock(AlertRepository.class);
+    private final AlertCounters counters = new AlertCounters(alertRepository);
+
+    @BeforeEach
+    void loadCounts() {
+        when(alertRepository.countOpenByUser()).thenReturn(List.<Object[]>of(
+                new Object[]{1L, 3L, 2L},
+                new Object[]{2L, 0L, 1L}));
+        counters.rebuild();
+    }
+
+    @Test
+    void rebuildsFromTheGroupedCount() {
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 3, 2));
+        assertThat(counters.get(2L)).isEqualTo(new UnreadCountDto(2L, 0, 1));
+        assertThat(counters.get(3L)).isEqualTo(new UnreadCountDto(3L, 0, 0));
+    }
+
+    @Test
+    void countsStoredAlertsOnceTheStoreHasRun() {
+        final boolean[] stored = {false};
+        counters.store(List.of(alert(1L, false, false), alert(1L, false, true), alert(3L, true, false)),
+                () -> {
+                    stored[0] = true;
+                    assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 3, 2));
+                });
+
+        assertThat(stored[0]).isTrue();
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 5, 3));
+        assertThat(counters.get(3L)).isEqualTo(new UnreadCountDto(3L, 0, 1));
+    }
+
+    @Test
+    void uncountsSentAlertsWhenEveryOneWasFlagged() {
+        counters.sent(Map.of(1L, 2, 2L, 1), () -> 3);
+
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 3, 0));
+        assertThat(counters.get(2L)).isEqualTo(new UnreadCountDto(2L, 0, 0));
+        verify(alertRepository, never()).countOpenForUser(1L);
+    }
+
+    @Test
+    void recountsTheUsersWhenSomeAlertsWereAlreadyFlagged() {
+        // Another replica flagged one of user 1's alerts first, so only 2 rows changed here
+        when(alertRepository.countOpenForUser(1L)).thenReturn(List.<Object[]>of(new Object[]{3L, 0L}));
+        when(alertRepository.countOpenForUser(2L)).thenReturn(List.<Object[]>of(new Object[]{null, null}));
+
+        counters.sent(Map.of(1L, 2, 2L, 1), () -> 2);
+
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 3, 0));
+        assertThat(counters.get(2L)).isEqualTo(new UnreadCountDto(2L, 0, 0));
+    }
+
+    @Test
+    void neverCountsBelowZero() {
+        counters.sent(Map.of(2L, 5), () -> 5);
+
+        assertThat(counters.get(2L)).isEqualTo(new UnreadCountDto(2L, 0, 0));
+    }
+
+    @Test
+    void acknowledgingRecountsTheUser() {
+        when(alertRepository.acknowledge(1L, List.of(10L, 11L))).thenReturn(2);
+        when(alertRepository.countOpenForUser(1L)).thenReturn(List.<Object[]>of(new Object[]{1L, 2L}));
+        final AlertService alertService = new AlertService(null, alertRepository, null, counters, 200);
+
+        assertThat(alertService.acknowledge(1L, List.of(10L, 11L))).isEqualTo(2);
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 1, 2));
+    }
+
+    @Test
+    void acknowledgingNothingOpenLeavesTheCountsAlone() {
+        when(alertRepository.acknowledgeAll(1L)).thenReturn(0);
+        final AlertService alertService = new AlertService(null, alertRepository, null, counters, 200);
+
+        assertThat(alertService.acknowledgeAll(1L)).isZero();
+        assertThat(counters.get(1L)).isEqualTo(new UnreadCountDto(1L, 3, 2));
+        verify(alertRepository, never()).countOpenForUser(1L);
+    }
+
+    private static Alert alert(Long userId, boolean acknowledged, boolean sent) {
+        return Alert.builder().userId(userId).acknowledged(acknowledged).sent(sent).build();
+    }
+}
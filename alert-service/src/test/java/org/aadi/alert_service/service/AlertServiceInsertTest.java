@@ -0,0 +1,74 @@
+package org.aadi.alert_service.service;
+
+import org.aadi.alert_service.dto.UnreadCountDto;
+import org.aadi.alert_service.entity.Alert;
+import org.aadi.alert_service.repository.AlertRepository;
+import org.aadi.kafka.event.AlertingEvent;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AlertServiceInsertTest {
+
+    private final EmailDispatcher emailDispatcher = mock(EmailDispatcher.class);
+    private final AlertRepository alertRepository = mock(AlertRepository.class);
+    private final AlertStreamRegistry alertStreamRegistry = mock(AlertStreamRegistry.class);
+    private final AlertCounters alertCounters = new AlertCounters(alertRepository);
+    private final AlertService alertService = new AlertService(emailDispatcher, alertRepository,
+            alertStreamRegistry, alertCounters, 200);
+
+    @Test
+    void storesAWholePollWithOneSaveAll() {
+        final List<AlertingEvent> events = Arrays.asList(
+                event(1L, "user@example.com"),
+                null,
+                event(1L, null),
+                event(2L, ""));
+        // Nothing is counted until the rows are stored
+        when(alertRepository.saveAll(anyList())).thenAnswer(invocation -> {
+            assertThat(alertCounters.get(1L)).isEqualTo(new UnreadCountDto(1L, 0, 0));
+            return invocation.getArgument(0);
+        });
+
+        alertService.energyUsageAlertEvents(events);
+
+        @SuppressWarnings("unchecked")
+        final ArgumentCaptor<List<Alert>> saved = ArgumentCaptor.forClass(List.class);
+        verify(alertRepository, times(1)).saveAll(saved.capture());
+        final List<Alert> alerts = saved.getValue();
+        assertThat(alerts).extracting(Alert::getUserId).containsExactly(1L, 1L, 2L);
+        assertThat(alerts).allSatisfy(alert -> {
+            assertThat(alert.getId()).isNull();
+            assertThat(alert.isSent()).isFalse();
+            assertThat(alert.getType()).isEqualTo(AlertingEvent.TYPE_THRESHOLD);
+        });
+        assertThat(alerts).extracting(Alert::getEmailClaimedAt)
+                .satisfiesExactly(
+                        claimedAt -> assertThat(claimedAt).isEqualTo(alerts.get(0).getCreatedAt()),
+                        claimedAt -> assertThat(claimedAt).isNull(),
+                        claimedAt -> assertThat(claimedAt).isNull());
+
+        assertThat(alertCounters.get(1L)).isEqualTo(new UnreadCountDto(1L, 2, 2));
+        verify(alertStreamRegistry).publish(alerts);
+        verify(emailDispatcher).enqueue(alerts);
+    }
+
+    private static AlertingEvent event(Long userId, String email) {
+        return AlertingEvent.builder()
+                .userId(userId)
+                .message("over threshold")
+                .threshold(5.0)
+                .energyConsumed(10.0)
+                .email(email)
+                .build();
+    }
+}
@@ -0,0 +1,126 @@
+package org.aadi.alert_service.service;
+
+import org.aadi.alert_service.dto.AlertPageDto;
+import org.aadi.alert_service.dto.AlertSummaryDto;
+import org.aadi.alert_service.repository.AlertRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AlertServicePageTest {
+
+    private static final Long USER_ID = 7L;
+    private static final LocalDateTime T0 = LocalDateTime.of(2026, 3, 1, 12, 0);
+
+    private final AlertRepository alertRepository = mock(AlertRepository.class);
+    private final AlertService alertService = new AlertService(null, alertRepository, null, null, 200);
+    private final List<AlertSummaryDto> rows = new ArrayList<>();
+
+    /**
+     * Answers findPage from {@link #rows} the way its query does: the same filters and
+     * keyset condition, ordered by (createdAt, id) descending.
+     */
+    @BeforeEach
+    void fakeRepository() {
+        when(alertRepository.findPage(any(), any(), any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            final LocalDateTime from = invocation.getArgument(1);
+            final LocalDateTime beforeCreatedAt = invocation.getArgument(2);
+            final Long beforeId = invocation.getArgument(3);
+            final String severity = invocation.getArgument(4);
+            final Boolean acknowledged = invocation.getArgument(5);
+            final Limit limit = invocation.getArgument(6);
+            return rows.stream()
+                    .filter(row -> !row.createdAt().isBefore(from))
+                    .filter(row -> row.createdAt().isBefore(beforeCreatedAt)
+                            || (row.createdAt().isEqual(beforeCreatedAt) && row.id() < beforeId))
+                    .filter(row -> severity == null || severity.equals(row.severity()))
+                    .filter(row -> acknowledged == null || acknowledged == row.acknowledged())
+                    .sorted(Comparator.comparing(AlertSummaryDto::createdAt).thenComparing(AlertSummaryDto::id).reversed())
+                    .limit(limit.max())
+                    .toList();
+        });
+    }
+
+    @Test
+    void walksEveryAlertOnceAcrossTiesOnCreatedAt() {
+        // Five alerts stored by the same batch share a createdAt and straddle page boundaries
+        add(1L, T0.minusMinutes(1));
+        for (long id = 2; id <= 6; id++) {
+            add(id, T0);
+        }
+        add(7L, T0.plusMinutes(1));
+
+        final List<Long> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final AlertPageDto page = alertService.getAlertPage(USER_ID, cursor, 2, null, null, null, null);
+            page.alerts().forEach(alert -> seen.add(alert.id()));
+            cursor = page.nextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(seen).containsExactly(7L, 6L, 5L, 4L, 3L, 2L, 1L);
+        assertThat(pages).isEqualTo(4);
+    }
+
+    @Test
+    void lastPageHasNoCursor() {
+        add(1L, T0);
+        add(2L, T0);
+
+        final AlertPageDto page = alertService.getAlertPage(USER_ID, null, 2, null, null, null, null);
+
+        assertThat(page.alerts()).extracting(AlertSummaryDto::id).containsExactly(2L, 1L);
+        assertThat(page.nextCursor()).isNull();
+    }
+
+    @Test
+    void keepsTheTimeRangeWhilePaging() {
+        for (long id = 1; id <= 6; id++) {
+            add(id, T0.plusMinutes(id));
+        }
+        // [T0 + 2m, T0 + 5m): alerts 2, 3 and 4
+        final Instant from = instant(T0.plusMinutes(2));
+        final Instant to = instant(T0.plusMinutes(5));
+
+        final AlertPageDto first = alertService.getAlertPage(USER_ID, null, 2, null, null, from, to);
+        final AlertPageDto second = alertService.getAlertPage(USER_ID, first.nextCursor(), 2, null, null, from, to);
+
+        assertThat(first.alerts()).extracting(AlertSummaryDto::id).containsExactly(4L, 3L);
+        assertThat(second.alerts()).extracting(AlertSummaryDto::id).containsExactly(2L);
+        assertThat(second.nextCursor()).isNull();
+    }
+
+    @Test
+    void rejectsMalformedCursorsAndLimits() {
+        assertThatThrownBy(() -> alertService.getAlertPage(USER_ID, "not-a-cursor", 10, null, null, null, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> alertService.getAlertPage(USER_ID, null, 0, null, null, null, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> alertService.getAlertPage(USER_ID, null, 201, null, null, null, null))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private void add(Long id, LocalDateTime createdAt) {
+        rows.add(new AlertSummaryDto(id, "THRESHOLD", "high", "alert " + id, 10.0, 5.0, null,
+                createdAt, false, createdAt));
+    }
+
+    private static Instant instant(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant();
+    }
+}
@@ -0,0 +1,75 @@
+package org.aadi.alert_service.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AlertStreamRegistryTest {
+
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final CountDownLatch sending = new CountDownLatch(1);
+
+    /** Every write blocks until {@link #unblock} opens, like a client that stopped reading. */
+    private final AlertStreamRegistry registry = new AlertStreamRegistry(10, 5, 8,
+            Duration.ofMinutes(30), Duration.ofHours(1), 1, Duration.ofMillis(100), 4) {
+        @Override
+        SseEmitter newEmitter(long timeoutMillis) {
+            return new SseEmitter(timeoutMillis) {
+                @Override
+                public void send(SseEventBuilder builder) throws IOException {
+                    sending.countDown();
+                    try {
+                        unblock.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+    };
+
+    @AfterEach
+    void shutdown() {
+        unblock.countDown();
+        registry.shutdown();
+    }
+
+    @Test
+    void replacesABlockedWriterAndGivesItBackOnceTheWriteReturns() throws InterruptedException {
+        assertThat(registry.subscribe(1L)).isNotNull();
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+
+        awaitValue(registry::stalledWriters, 1);
+        assertThat(registry.subscriberCount()).isZero();
+
+        unblock.countDown();
+        awaitValue(registry::stalledWriters, 0);
+    }
+
+    @Test
+    void leavesTheWriterPoolAloneForWritesThatFinishInTime() throws InterruptedException {
+        unblock.countDown();
+        assertThat(registry.subscribe(1L)).isNotNull();
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Thread.sleep(300);
+        assertThat(registry.stalledWriters()).isZero();
+        assertThat(registry.subscriberCount()).isEqualTo(1);
+    }
+
+    private static void awaitValue(IntSupplier actual, int expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (actual.getAsInt() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(actual.getAsInt()).isEqualTo(expected);
+    }
+}
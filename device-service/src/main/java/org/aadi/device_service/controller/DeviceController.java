@@ -55,4 +55,18 @@ public class DeviceController {
         List<DeviceDto> devices = deviceService.getAllDevicesByUserId(userId);
         return ResponseEntity.ok(devices);
     }
+
+    // Devices of all given users in one query; callers group them by userId
+    @PostMapping("/user/batch")
+    public ResponseEntity<List<DeviceDto>> getDevicesByUserIds(@RequestBody List<Long> userIds) {
+        List<DeviceDto> devices = deviceService.getDevicesByUserIds(userIds);
+        return ResponseEntity.ok(devices);
+    }
+
+    // Ids that do not exist are simply left out of the response
+    @PostMapping("/batch")
+    public ResponseEntity<List<DeviceDto>> getDevicesByIds(@RequestBody List<Long> ids) {
+        List<DeviceDto> devices = deviceService.getDevicesByIds(ids);
+        return ResponseEntity.ok(devices);
+    }
 }
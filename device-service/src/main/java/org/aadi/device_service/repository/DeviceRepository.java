@@ -4,10 +4,13 @@ import org.aadi.device_service.entity.Device;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface DeviceRepository extends JpaRepository<Device, Long> {
 
     List<Device> findAllByUserId(Long userId);
+
+    List<Device> findAllByUserIdIn(Collection<Long> userIds);
 }
@@ -63,6 +63,20 @@ public class DeviceService {
                 .toList();
     }
 
+    public List<DeviceDto> getDevicesByUserIds(List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return List.of();
+        }
+        return deviceRepository.findAllByUserIdIn(userIds).stream()
+                .map(this::mapToDto)
+                .toList();
+    }
+
+    public List<DeviceDto> getDevicesByIds(List<Long> ids) {
+        return deviceRepository.findAllById(ids).stream()
+                .map(this::mapToDto)
+                .toList();
+    }
 
     private DeviceDto mapToDto(Device device) {
         DeviceDto dto = new DeviceDto();
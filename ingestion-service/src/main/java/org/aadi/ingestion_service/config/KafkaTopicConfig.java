@@ -0,0 +1,33 @@
+package org.aadi.ingestion_service.config;
+
+import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.TopicBuilder;
+
+@Configuration
+public class KafkaTopicConfig {
+
+    @Value("${kafka.topic.energy-usage.partitions:6}")
+    private int energyUsagePartitions;
+
+    @Value("${kafka.topic.energy-usage.replicas:1}")
+    private short energyUsageReplicas;
+
+    /**
+     * Records are keyed by deviceId, so each device's readings stay ordered within one
+     * partition. Adding partitions later remaps keys to different partitions: readings of a
+     * device can then be consumed out of order across the change, and consumer state that is
+     * keyed by partition (snapshot offsets, per-partition windows) no longer matches. Size the
+     * topic up front; KafkaAdmin only ever grows the partition count of an existing topic, so
+     * raising this property is a migration, not a tuning knob.
+     */
+    @Bean
+    public NewTopic energyUsageTopic() {
+        return TopicBuilder.name("energy-usage")
+                .partitions(energyUsagePartitions)
+                .replicas(energyUsageReplicas)
+                .build();
+    }
+}
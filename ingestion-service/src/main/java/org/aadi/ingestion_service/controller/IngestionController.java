@@ -1,13 +1,18 @@
 package org.aadi.ingestion_service.controller;
 
+import org.aadi.ingestion_service.dto.BatchIngestionResultDto;
 import org.aadi.ingestion_service.dto.EnergyUsageDto;
 import org.aadi.ingestion_service.service.IngestionService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.InputStream;
+
 @RestController
 @RequestMapping("/api/v1/ingestion")
 public class IngestionController {
@@ -23,4 +28,11 @@ public class IngestionController {
     public void ingestData(@RequestBody EnergyUsageDto usageDto) {
         ingestionService.ingestEnergyUsage(usageDto);
     }
+
+    @PostMapping(value = "/batch",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    @ResponseStatus(HttpStatus.CREATED)
+    public BatchIngestionResultDto ingestBatch(InputStream body) {
+        return ingestionService.ingestEnergyUsageBatch(body);
+    }
 }
@@ -0,0 +1,13 @@
+package org.aadi.ingestion_service.dto;
+
+import lombok.Builder;
+
+import java.util.List;
+
+@Builder
+public record BatchIngestionResultDto(
+        long received,
+        long accepted,
+        long rejected,
+        List<String> errors) {
+}
@@ -1,31 +1,170 @@
 package org.aadi.ingestion_service.service;
 
+import org.aadi.ingestion_service.dto.BatchIngestionResultDto;
 import org.aadi.ingestion_service.dto.EnergyUsageDto;
 import org.aadi.kafka.event.EnergyUsageEvent;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.DatabindException;
+import tools.jackson.databind.MappingIterator;
+import tools.jackson.databind.ObjectReader;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
 public class IngestionService {
 
     private final KafkaTemplate<String, EnergyUsageEvent> kafkaTemplate;
+    private final ObjectReader usageReader;
+
+    @Value("${ingestion.batch.size:500}")
+    private int batchSize;
 
-    public IngestionService(KafkaTemplate<String, EnergyUsageEvent> kafkaTemplate) {
+    @Value("${ingestion.batch.max-reported-errors:100}")
+    private int maxReportedErrors;
+
+    public IngestionService(KafkaTemplate<String, EnergyUsageEvent> kafkaTemplate,
+                            JsonMapper jsonMapper) {
         this.kafkaTemplate = kafkaTemplate;
+        this.usageReader = jsonMapper.readerFor(EnergyUsageDto.class);
     }
 
     public void ingestEnergyUsage(EnergyUsageDto input) {
         // Convert DTO to Event
-        EnergyUsageEvent event = EnergyUsageEvent.builder()
+        EnergyUsageEvent event = toEvent(input);
+
+        // Send to Kafka Topic
+        publish(event);
+        log.info("Ingested Energy Usage Event: {}", event);
+    }
+
+    /**
+     * Reads readings one at a time from either a JSON array or newline-delimited JSON
+     * and hands them to Kafka in chunks of {@code ingestion.batch.size}. A reading only
+     * counts as accepted once the broker has acknowledged it.
+     */
+    public BatchIngestionResultDto ingestEnergyUsageBatch(InputStream body) {
+        final BatchTally tally = new BatchTally(maxReportedErrors);
+        final List<EnergyUsageEvent> batch = new ArrayList<>(batchSize);
+
+        try (MappingIterator<EnergyUsageDto> readings = usageReader.readValues(body)) {
+            while (readings.hasNextValue()) {
+                final long index = tally.received++;
+                final EnergyUsageDto reading;
+                try {
+                    reading = readings.nextValue();
+                } catch (DatabindException e) {
+                    // Well-formed JSON with a bad value: skip it and carry on with the next reading
+                    tally.reject("Record " + index + ": " + e.getOriginalMessage());
+                    continue;
+                }
+
+                final String violation = validate(reading);
+                if (violation != null) {
+                    tally.reject("Record " + index + ": " + violation);
+                    continue;
+                }
+
+                batch.add(toEvent(reading));
+                if (batch.size() >= batchSize) {
+                    sendBatch(batch, tally);
+                }
+            }
+        } catch (JacksonException e) {
+            // Malformed payload - the parser cannot resync, so stop reading but keep what was parsed
+            tally.reject("Malformed payload after record " + tally.received + ": " + e.getOriginalMessage());
+        }
+        sendBatch(batch, tally);
+
+        log.info("Ingested batch: received={}, accepted={}, rejected={}",
+                tally.received, tally.accepted, tally.rejected);
+        return BatchIngestionResultDto.builder()
+                .received(tally.received)
+                .accepted(tally.accepted)
+                .rejected(tally.rejected)
+                .errors(tally.errors)
+                .build();
+    }
+
+    private void sendBatch(List<EnergyUsageEvent> batch, BatchTally tally) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<CompletableFuture<SendResult<String, EnergyUsageEvent>>> futures = new ArrayList<>(batch.size());
+        for (EnergyUsageEvent event : batch) {
+            futures.add(publish(event));
+        }
+        // Wait for the whole chunk so the response reflects what the broker actually took
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).join();
+                tally.accepted++;
+            } catch (Exception e) {
+                tally.reject("Failed to publish reading for device "
+                        + batch.get(i).deviceId() + ": " + e.getMessage());
+            }
+        }
+        log.debug("Published batch of {} energy usage events", batch.size());
+        batch.clear();
+    }
+
+    /**
+     * Keyed by deviceId so every reading of a device lands on the same partition and is
+     * consumed in order, however many partitions the topic has.
+     */
+    private CompletableFuture<SendResult<String, EnergyUsageEvent>> publish(EnergyUsageEvent event) {
+        return kafkaTemplate.send("energy-usage", String.valueOf(event.deviceId()), event);
+    }
+
+    private String validate(EnergyUsageDto reading) {
+        if (reading == null) {
+            return "Reading is null";
+        }
+        if (reading.deviceId() == null) {
+            return "deviceId is required";
+        }
+        if (reading.timestamp() == null) {
+            return "timestamp is required";
+        }
+        if (!Double.isFinite(reading.energyConsumed()) || reading.energyConsumed() < 0) {
+            return "energyConsumed must be a non-negative number";
+        }
+        return null;
+    }
+
+    private EnergyUsageEvent toEvent(EnergyUsageDto input) {
+        return EnergyUsageEvent.builder()
                 .deviceId(input.deviceId())
                 .energyConsumed(input.energyConsumed())
                 .timestamp(input.timestamp())
                 .build();
+    }
 
-        // Send to Kafka Topic
-        kafkaTemplate.send("energy-usage", event);
-        log.info("Ingested Energy Usage Event: {}", event);
+    private static final class BatchTally {
+        private final int maxErrors;
+        private final List<String> errors = new ArrayList<>();
+        private long received;
+        private long accepted;
+        private long rejected;
+
+        private BatchTally(int maxErrors) {
+            this.maxErrors = maxErrors;
+        }
+
+        private void reject(String error) {
+            rejected++;
+            if (errors.size() < maxErrors) {
+                errors.add(error);
+            }
+        }
     }
 }
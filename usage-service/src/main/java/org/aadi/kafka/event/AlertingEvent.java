@@ -2,12 +2,24 @@ package org.aadi.kafka.event;
 
 import lombok.Builder;
 
+/**
+ * An alert for alert-service. User-level alerts (threshold, budget) leave the device
+ * fields null; device anomalies also carry the device and its baseline.
+ */
 @Builder
 public record AlertingEvent(
         Long userId,
         String message,
         double threshold,
         double energyConsumed,
-        String email
+        String email,
+        String type,
+        Long deviceId,
+        String device,
+        Double expectedValue,
+        Double averageValue
 ) {
+    public static final String TYPE_THRESHOLD = "energy_threshold";
+    public static final String TYPE_BUDGET = "energy_budget";
+    public static final String TYPE_ANOMALY = "energy_anomaly";
 }
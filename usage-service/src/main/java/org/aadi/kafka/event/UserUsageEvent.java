@@ -0,0 +1,18 @@
+package org.aadi.kafka.event;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Builder;
+
+import java.time.Instant;
+
+/**
+ * A reading usage-service has written to InfluxDB, republished keyed by the device's owner
+ * so that all readings of a user land on one partition of {@code energy-usage-by-user}.
+ */
+@Builder
+public record UserUsageEvent(
+        Long userId,
+        Long deviceId,
+        double energyConsumed,
+        @JsonFormat(shape = JsonFormat.Shape.STRING)
+        Instant timestamp) {}
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.Collection;
 import java.util.List;
 
 @Component
@@ -43,4 +44,26 @@ public class DeviceClient {
         DeviceDto[] devices = response.getBody();
         return devices == null ? List.of() : List.of(devices);
     }
+
+    public List<DeviceDto> getDevicesByIds(Collection<Long> deviceIds) {
+        String url = UriComponentsBuilder
+                .fromUriString(baseUrl)
+                .path("/batch")
+                .toUriString();
+
+        ResponseEntity<DeviceDto[]> response = restTemplate.postForEntity(url, deviceIds, DeviceDto[].class);
+        DeviceDto[] devices = response.getBody();
+        return devices == null ? List.of() : List.of(devices);
+    }
+
+    public List<DeviceDto> getDevicesForUsers(Collection<Long> userIds) {
+        String url = UriComponentsBuilder
+                .fromUriString(baseUrl)
+                .path("/user/batch")
+                .toUriString();
+
+        ResponseEntity<DeviceDto[]> response = restTemplate.postForEntity(url, userIds, DeviceDto[].class);
+        DeviceDto[] devices = response.getBody();
+        return devices == null ? List.of() : List.of(devices);
+    }
 }
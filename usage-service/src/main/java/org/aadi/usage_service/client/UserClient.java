@@ -1,5 +1,7 @@
 package org.aadi.usage_service.client;
 
+import org.aadi.usage_service.dto.EnergyBudgetDto;
+import org.aadi.usage_service.dto.UserAlertSettingsDto;
 import org.aadi.usage_service.dto.UserDto;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
@@ -7,6 +9,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.Collection;
+import java.util.List;
+
 @Component
 public class UserClient {
 
@@ -29,4 +34,28 @@ public class UserClient {
         ResponseEntity<UserDto> response = restTemplate.getForEntity(url, UserDto.class);
         return response.getBody();
     }
+
+    public List<UserAlertSettingsDto> getAlertSettings(Collection<Long> userIds) {
+        String url = UriComponentsBuilder
+                .fromUriString(baseUrl)
+                .path("/batch")
+                .toUriString();
+
+        ResponseEntity<UserAlertSettingsDto[]> response =
+                restTemplate.postForEntity(url, userIds, UserAlertSettingsDto[].class);
+        UserAlertSettingsDto[] settings = response.getBody();
+        return settings == null ? List.of() : List.of(settings);
+    }
+
+    public List<EnergyBudgetDto> getBudgets(Collection<Long> userIds) {
+        String url = UriComponentsBuilder
+                .fromUriString(baseUrl)
+                .path("/budgets/batch")
+                .toUriString();
+
+        ResponseEntity<EnergyBudgetDto[]> response =
+                restTemplate.postForEntity(url, userIds, EnergyBudgetDto[].class);
+        EnergyBudgetDto[] budgets = response.getBody();
+        return budgets == null ? List.of() : List.of(budgets);
+    }
 }
@@ -0,0 +1,86 @@
+package org.aadi.usage_service.config;
+
+import jakarta.annotation.PreDestroy;
+import org.aadi.usage_service.service.AlertPartitioner;
+import org.aadi.usage_service.service.AlertStateMachine;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.kafka.autoconfigure.KafkaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Alert state machines: one for users' overall thresholds, keyed by userId, and one for
+ * energy budgets, keyed by budget id. Both share the hysteresis settings but keep their
+ * state in separate changelog topics, written as JSON with their own serializers rather
+ * than the application's event serializers.
+ */
+@Configuration
+public class AlertingConfig {
+
+    public static final String ALERT_STATE_TOPIC = "usage-alert-state";
+    public static final String BUDGET_ALERT_STATE_TOPIC = "usage-budget-alert-state";
+
+    @Value("${usage.alerting.rearm-ratio:0.9}")
+    private double rearmRatio;
+
+    @Value("${usage.alerting.cooldown:15m}")
+    private Duration cooldown;
+
+    @Value("${usage.alerting.min-renotify-interval:1h}")
+    private Duration minRenotifyInterval;
+
+    @Value("${usage.alerting.state-restore-timeout:1m}")
+    private Duration restoreTimeout;
+
+    private final KafkaTemplate<String, byte[]> changelogTemplate;
+    private final ConsumerFactory<String, byte[]> changelogConsumerFactory;
+
+    // Not beans: a KafkaTemplate or ConsumerFactory bean would replace the auto-configured ones
+    public AlertingConfig(KafkaProperties kafkaProperties) {
+        final Map<String, Object> producerProperties = kafkaProperties.buildProducerProperties();
+        producerProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        producerProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        this.changelogTemplate = new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(producerProperties));
+
+        final Map<String, Object> consumerProperties = kafkaProperties.buildConsumerProperties();
+        consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        // Partitions are assigned and read from the beginning; nothing is committed
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        consumerProperties.remove(ConsumerConfig.GROUP_ID_CONFIG);
+        this.changelogConsumerFactory = new DefaultKafkaConsumerFactory<>(consumerProperties);
+    }
+
+    @PreDestroy
+    public void closeChangelogProducer() {
+        changelogTemplate.getProducerFactory().reset();
+    }
+
+    @Bean
+    @Primary
+    public AlertStateMachine alertStateMachine(JsonMapper jsonMapper, AlertPartitioner alertPartitioner) {
+        return new AlertStateMachine(jsonMapper, changelogTemplate, changelogConsumerFactory,
+                ALERT_STATE_TOPIC, alertPartitioner, restoreTimeout, rearmRatio, cooldown, minRenotifyInterval);
+    }
+
+    @Bean
+    public AlertStateMachine budgetStateMachine(JsonMapper jsonMapper, AlertPartitioner alertPartitioner) {
+        return new AlertStateMachine(jsonMapper, changelogTemplate, changelogConsumerFactory,
+                BUDGET_ALERT_STATE_TOPIC, alertPartitioner, restoreTimeout, rearmRatio, cooldown, minRenotifyInterval);
+    }
+}
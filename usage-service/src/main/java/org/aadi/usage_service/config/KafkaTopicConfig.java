@@ -0,0 +1,54 @@
+package org.aadi.usage_service.config;
+
+import org.aadi.usage_service.service.AlertPartitioner;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.TopicBuilder;
+
+@Configuration
+public class KafkaTopicConfig {
+
+    @Value("${kafka.topic.energy-usage-by-user.partitions:6}")
+    private int energyUsageByUserPartitions;
+
+    @Value("${kafka.topic.energy-usage-by-user.replicas:1}")
+    private short energyUsageByUserReplicas;
+
+    /**
+     * Readings keyed by their owner. A partition is the unit in which users, their rolling
+     * window and their alerts move between replicas, so the partition count bounds how far
+     * alert evaluation scales out. Changing it later moves users to other partitions; size
+     * the topic up front.
+     */
+    @Bean
+    public NewTopic energyUsageByUserTopic() {
+        return TopicBuilder.name(AlertPartitioner.TOPIC)
+                .partitions(energyUsageByUserPartitions)
+                .replicas(energyUsageByUserReplicas)
+                .build();
+    }
+
+    /**
+     * Latest alert state per key, written to the partition of energy-usage-by-user that owns
+     * the state's user, so both topics need the same partition count.
+     */
+    @Bean
+    public NewTopic alertStateTopic() {
+        return changelog(AlertingConfig.ALERT_STATE_TOPIC);
+    }
+
+    @Bean
+    public NewTopic budgetAlertStateTopic() {
+        return changelog(AlertingConfig.BUDGET_ALERT_STATE_TOPIC);
+    }
+
+    private NewTopic changelog(String name) {
+        return TopicBuilder.name(name)
+                .partitions(energyUsageByUserPartitions)
+                .replicas(energyUsageByUserReplicas)
+                .compact()
+                .build();
+    }
+}
@@ -1,15 +1,30 @@
 package org.aadi.usage_service.controller;
 
 import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.dto.UsageBatchRequestDto;
 import org.aadi.usage_service.dto.UsageDto;
+import org.aadi.usage_service.dto.UsageSeriesDto;
+import org.aadi.usage_service.service.UsageRetagBackfill;
+import org.aadi.usage_service.service.UsageRollupService;
+import org.aadi.usage_service.service.UsageSeriesService;
 import org.aadi.usage_service.service.UsageService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
 
 @Slf4j
 @RestController
@@ -17,9 +32,24 @@ import org.springframework.web.bind.annotation.RestController;
 public class UsageController {
 
     private final UsageService usageService;
+    private final UsageRetagBackfill usageRetagBackfill;
+    private final UsageSeriesService usageSeriesService;
+    private final UsageRollupService usageRollupService;
+    private final JsonMapper jsonMapper;
+
+    @Value("${usage.series.max-points:5000}")
+    private int seriesMaxPoints;
 
-    public UsageController(UsageService usageService) {
+    public UsageController(UsageService usageService,
+                           UsageRetagBackfill usageRetagBackfill,
+                           UsageSeriesService usageSeriesService,
+                           UsageRollupService usageRollupService,
+                           JsonMapper jsonMapper) {
         this.usageService = usageService;
+        this.usageRetagBackfill = usageRetagBackfill;
+        this.usageSeriesService = usageSeriesService;
+        this.usageRollupService = usageRollupService;
+        this.jsonMapper = jsonMapper;
     }
 
     @GetMapping("/{userId}")
@@ -30,6 +60,49 @@ public class UsageController {
         return ResponseEntity.ok(usageDto);
     }
 
+    /**
+     * Usage of many users over the past {@code days} (default 3), streamed back as one
+     * {@link UsageDto} per line as each chunk of users is resolved.
+     */
+    @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getUsersDeviceUsage(@RequestBody UsageBatchRequestDto request) {
+        if (request.userIds() == null || request.userIds().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        final int days = request.days() != null ? request.days() : 3;
+        final StreamingResponseBody body = outputStream ->
+                usageService.streamXDaysUsageForUsers(request.userIds(), days, usageDto -> {
+                    try {
+                        outputStream.write(jsonMapper.writeValueAsBytes(usageDto));
+                        outputStream.write('\n');
+                        outputStream.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    /**
+     * Per-device usage series between {@code from} and {@code to} (ISO-8601, default: the
+     * past day), with at most {@code maxPoints} points per device.
+     */
+    @GetMapping("/{userId}/series")
+    public ResponseEntity<UsageSeriesDto> getUserUsageSeries(
+            @PathVariable Long userId,
+            @RequestParam(required = false) Instant from,
+            @RequestParam(required = false) Instant to,
+            @RequestParam(defaultValue = "500") int maxPoints) {
+        final Instant end = to != null ? to : Instant.now();
+        final Instant start = from != null ? from : end.minus(Duration.ofDays(1));
+        if (!start.isBefore(end) || maxPoints < 3 || maxPoints > seriesMaxPoints) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(usageSeriesService.getSeries(userId, start, end, maxPoints));
+    }
+
     @PostMapping("/check-alerts")
     public ResponseEntity<String> checkAlerts() {
         try {
@@ -41,4 +114,24 @@ public class UsageController {
             return ResponseEntity.status(500).body("Failed to check alerts: " + e.getMessage());
         }
     }
+
+    @PostMapping("/backfill-tags")
+    public ResponseEntity<String> backfillTags(@RequestParam(defaultValue = "7") int days) {
+        if (!usageRetagBackfill.start(days)) {
+            return ResponseEntity.status(409).body("Tag backfill already running or not run by this instance");
+        }
+        log.info("Tag backfill started for the past {} days", days);
+        return ResponseEntity.accepted().body("Tag backfill started");
+    }
+
+    @PostMapping("/rollups/recompute")
+    public ResponseEntity<String> recomputeRollups(@RequestParam Instant from) {
+        if (from.isAfter(Instant.now())) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!usageRollupService.recompute(from)) {
+            return ResponseEntity.status(409).body("Rollups are not written by this instance");
+        }
+        return ResponseEntity.accepted().body("Rollup recompute scheduled");
+    }
 }
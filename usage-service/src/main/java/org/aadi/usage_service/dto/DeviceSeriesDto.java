@@ -0,0 +1,13 @@
+package org.aadi.usage_service.dto;
+
+import lombok.Builder;
+
+import java.util.List;
+
+@Builder
+public record DeviceSeriesDto(
+    Long deviceId,
+    String name,
+    List<UsagePointDto> points
+) {
+}
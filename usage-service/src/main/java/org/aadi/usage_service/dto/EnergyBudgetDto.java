@@ -0,0 +1,13 @@
+package org.aadi.usage_service.dto;
+
+import lombok.Builder;
+
+@Builder
+public record EnergyBudgetDto(Long id,
+                              Long userId,
+                              String window,
+                              String scope,
+                              Long deviceId,
+                              String deviceType,
+                              double limit) {
+}
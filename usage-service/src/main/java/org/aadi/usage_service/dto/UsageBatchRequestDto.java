@@ -0,0 +1,9 @@
+package org.aadi.usage_service.dto;
+
+import java.util.List;
+
+public record UsageBatchRequestDto(
+    List<Long> userIds,
+    Integer days
+) {
+}
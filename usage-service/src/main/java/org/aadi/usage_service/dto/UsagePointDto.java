@@ -0,0 +1,9 @@
+package org.aadi.usage_service.dto;
+
+import java.time.Instant;
+
+public record UsagePointDto(
+    Instant timestamp,
+    double energyConsumed
+) {
+}
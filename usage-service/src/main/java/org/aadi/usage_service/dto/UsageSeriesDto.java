@@ -0,0 +1,17 @@
+package org.aadi.usage_service.dto;
+
+import lombok.Builder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+@Builder
+public record UsageSeriesDto(
+    Long userId,
+    Instant from,
+    Instant to,
+    Duration window,
+    List<DeviceSeriesDto> devices
+) {
+}
@@ -0,0 +1,13 @@
+package org.aadi.usage_service.dto;
+
+import lombok.Builder;
+
+@Builder
+public record UserAlertSettingsDto(
+        Long id,
+        boolean alerting,
+        double energyAlertingThreshold,
+        boolean emailNotifications,
+        String email
+) {
+}
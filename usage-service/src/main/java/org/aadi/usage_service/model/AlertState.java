@@ -0,0 +1,10 @@
+package org.aadi.usage_service.model;
+
+public enum AlertState {
+    /** Within threshold; the next breach notifies. */
+    OK,
+    /** Over threshold and already notified. */
+    TRIPPED,
+    /** Back under the re-arm level, waiting out the cooldown before re-arming. */
+    COOLDOWN
+}
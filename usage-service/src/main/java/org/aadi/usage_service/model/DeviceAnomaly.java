@@ -0,0 +1,19 @@
+package org.aadi.usage_service.model;
+
+import java.time.Instant;
+
+/**
+ * A device whose consumption in the current hour is well above its learned baseline.
+ *
+ * @param consumed  energy consumed so far in the hour starting at {@code hour}
+ * @param expected  baseline (EWMA) consumption for an hour
+ * @param average   the device's mean hourly consumption since it was first seen
+ * @param threshold level {@code consumed} had to exceed to be reported
+ */
+public record DeviceAnomaly(Long deviceId,
+                            Instant hour,
+                            double consumed,
+                            double expected,
+                            double average,
+                            double threshold) {
+}
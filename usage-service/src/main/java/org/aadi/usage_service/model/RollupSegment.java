@@ -0,0 +1,14 @@
+package org.aadi.usage_service.model;
+
+import java.time.Instant;
+
+/**
+ * A slice of a usage query, read from one measurement over {@code [start, stop)}.
+ */
+public record RollupSegment(
+        String bucket,
+        String measurement,
+        Instant start,
+        Instant stop
+) {
+}
@@ -0,0 +1,22 @@
+package org.aadi.usage_service.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class UserAlertState {
+    /** User the alert belongs to (the key itself for per-user thresholds). */
+    private Long userId;
+    private AlertState state;
+    /** When the current state was entered, epoch millis. */
+    private long since;
+    /** When an alert was last published for this user, epoch millis (0 if never). */
+    private long lastNotifiedAt;
+    /** Threshold in force when the user last tripped, used to settle users with no new data. */
+    private double threshold;
+}
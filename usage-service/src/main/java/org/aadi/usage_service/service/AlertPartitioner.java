@@ -0,0 +1,86 @@
+package org.aadi.usage_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.kafka.event.AlertingEvent;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Splits alert evaluation across usage-service replicas. Every stored reading is
+ * republished to {@code energy-usage-by-user} on the partition its owner's id hashes to
+ * (murmur2, as Kafka's default partitioner would place a record keyed by the userId), and a
+ * user is evaluated only by the replica assigned that partition in the {@code usage-window}
+ * consumer group, which also holds the user's rolling window. Membership and failover
+ * therefore come from the consumer group: a rebalance moves users together with their
+ * partitions. A single replica is assigned every partition.
+ */
+@Slf4j
+@Service
+public class AlertPartitioner {
+
+    public static final String TOPIC = "energy-usage-by-user";
+
+    private final KafkaTemplate<String, AlertingEvent> kafkaTemplate;
+
+    private final Set<Integer> assigned = ConcurrentHashMap.newKeySet();
+    private volatile int partitionCount;
+
+    public AlertPartitioner(KafkaTemplate<String, AlertingEvent> kafkaTemplate) {
+        this.kafkaTemplate = kafkaTemplate;
+    }
+
+    public void onAssigned(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            if (TOPIC.equals(partition.topic())) {
+                assigned.add(partition.partition());
+            }
+        }
+        // Partitions may have been added to the topic; re-read the count on next use
+        partitionCount = 0;
+        log.info("Alert evaluation now owns {} partitions {}", TOPIC, assigned);
+    }
+
+    public void onRevoked(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            if (TOPIC.equals(partition.topic())) {
+                assigned.remove(partition.partition());
+            }
+        }
+    }
+
+    /**
+     * Partition of {@code energy-usage-by-user} that holds the readings of {@code userId}.
+     */
+    public int partitionOf(Long userId) {
+        int count = partitionCount;
+        if (count == 0) {
+            count = kafkaTemplate.partitionsFor(TOPIC).size();
+            partitionCount = count;
+        }
+        final byte[] key = String.valueOf(userId).getBytes(StandardCharsets.UTF_8);
+        return Utils.toPositive(Utils.murmur2(key)) % count;
+    }
+
+    /**
+     * Whether this replica evaluates alerts for {@code userId}. Owns nothing until the
+     * window listener has been assigned partitions.
+     */
+    public boolean owns(Long userId) {
+        return !assigned.isEmpty() && assigned.contains(partitionOf(userId));
+    }
+
+    /**
+     * Whether this replica is assigned {@code partition}. Holding partition 0 doubles as
+     * leadership for work that must run on exactly one replica, such as rollups.
+     */
+    public boolean ownsPartition(int partition) {
+        return assigned.contains(partition);
+    }
+}
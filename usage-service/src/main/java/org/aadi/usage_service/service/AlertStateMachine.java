@@ -0,0 +1,287 @@
+package org.aadi.usage_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.model.AlertState;
+import org.aadi.usage_service.model.UserAlertState;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Per-user alert state machine, OK -> TRIPPED -> COOLDOWN -> OK, so that one breach
+ * publishes one alert rather than one every aggregation cycle.
+ * <ul>
+ *   <li>OK: going over the threshold trips the user and notifies. If the previous
+ *   notification was less than {@code min-renotify-interval} ago the user stays in OK until
+ *   it may be notified again, so a breach is never tripped without being reported.</li>
+ *   <li>TRIPPED: stays silent until consumption falls below {@code threshold * rearm-ratio}.</li>
+ *   <li>COOLDOWN: going back over the threshold returns to TRIPPED without notifying;
+ *   staying below the re-arm level for {@code cooldown} returns to OK.</li>
+ * </ul>
+ * Users in OK with no recent notification carry no state. The rest is written to a
+ * compacted changelog topic after every cycle that changes it, on the
+ * {@code energy-usage-by-user} partition of the state's user (see {@link AlertPartitioner}).
+ * A replica assigned a partition loads its users' states from the changelog, and one that
+ * loses a partition writes out what it changed and drops them, so a user's state moves
+ * with the user and is never held by two replicas.
+ * <p>
+ * States are keyed by the id of what is being watched: the user for their overall
+ * threshold, or an energy budget. Each state records the user it belongs to. One instance
+ * is created per kind of key, see {@code AlertingConfig}.
+ */
+@Slf4j
+public class AlertStateMachine {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+    private final JsonMapper jsonMapper;
+    private final KafkaTemplate<String, byte[]> changelogTemplate;
+    private final ConsumerFactory<String, byte[]> changelogConsumerFactory;
+    private final String changelogTopic;
+    private final AlertPartitioner alertPartitioner;
+    private final Duration restoreTimeout;
+    private final double rearmRatio;
+    private final long cooldownMillis;
+    private final long minRenotifyMillis;
+
+    private final Map<Long, UserAlertState> states = new ConcurrentHashMap<>();
+    // Keys changed since the last persist, with the user whose partition they are written to
+    private final Map<Long, Long> changed = new ConcurrentHashMap<>();
+
+    public AlertStateMachine(JsonMapper jsonMapper,
+                             KafkaTemplate<String, byte[]> changelogTemplate,
+                             ConsumerFactory<String, byte[]> changelogConsumerFactory,
+                             String changelogTopic,
+                             AlertPartitioner alertPartitioner,
+                             Duration restoreTimeout,
+                             double rearmRatio,
+                             Duration cooldown,
+                             Duration minRenotifyInterval) {
+        this.jsonMapper = jsonMapper;
+        this.changelogTemplate = changelogTemplate;
+        this.changelogConsumerFactory = changelogConsumerFactory;
+        this.changelogTopic = changelogTopic;
+        this.alertPartitioner = alertPartitioner;
+        this.restoreTimeout = restoreTimeout;
+        this.rearmRatio = rearmRatio;
+        this.cooldownMillis = cooldown.toMillis();
+        this.minRenotifyMillis = minRenotifyInterval.toMillis();
+    }
+
+    /**
+     * Advances the user's state for the latest consumption and returns whether an alert
+     * should be published.
+     */
+    public boolean evaluate(Long userId, double consumption, double threshold, long now) {
+        return evaluate(userId, userId, consumption, threshold, now);
+    }
+
+    /**
+     * Same as {@link #evaluate(Long, double, double, long)} for a state kept under
+     * {@code key} on behalf of {@code userId}.
+     */
+    public boolean evaluate(Long key, Long userId, double consumption, double threshold, long now) {
+        final UserAlertState current = states.get(key);
+        final AlertState state = current == null ? AlertState.OK : current.getState();
+        final boolean over = consumption > threshold;
+        final boolean belowRearm = consumption <= threshold * rearmRatio;
+
+        switch (state) {
+            case OK -> {
+                if (!over) {
+                    return false;
+                }
+                final long lastNotifiedAt = current == null ? 0L : current.getLastNotifiedAt();
+                if (now - lastNotifiedAt < minRenotifyMillis) {
+                    // Hold off rather than trip silently; the breach is reported once allowed
+                    return false;
+                }
+                transition(key, userId, AlertState.TRIPPED, now, now, threshold);
+                return true;
+            }
+            case TRIPPED -> {
+                if (belowRearm) {
+                    transition(key, userId, AlertState.COOLDOWN, now, current.getLastNotifiedAt(), threshold);
+                }
+                return false;
+            }
+            case COOLDOWN -> {
+                if (over) {
+                    transition(key, userId, AlertState.TRIPPED, now, current.getLastNotifiedAt(), threshold);
+                } else if (!belowRearm) {
+                    // Hovering between the re-arm level and the threshold restarts the cooldown
+                    transition(key, userId, AlertState.COOLDOWN, now, current.getLastNotifiedAt(), threshold);
+                } else if (now - current.getSince() >= cooldownMillis) {
+                    transition(key, userId, AlertState.OK, now, current.getLastNotifiedAt(), threshold);
+                }
+                return false;
+            }
+            default -> throw new IllegalStateException("Unknown alert state " + state);
+        }
+    }
+
+    /**
+     * Settles users that still hold state but were not evaluated this cycle (no usage in
+     * the window or alerting switched off) as if their consumption had dropped to zero.
+     * Users this replica does not currently own are left as they are.
+     */
+    public void settle(Collection<Long> evaluatedKeys, Predicate<Long> owned, long now) {
+        for (Map.Entry<Long, UserAlertState> entry : states.entrySet()) {
+            final Long key = entry.getKey();
+            final UserAlertState state = entry.getValue();
+            final Long userId = ownerOf(key, state);
+            if (evaluatedKeys.contains(key) || !owned.test(userId)) {
+                continue;
+            }
+            if (state.getState() == AlertState.OK) {
+                // Only kept around to enforce the re-notify interval
+                if (now - state.getLastNotifiedAt() >= minRenotifyMillis) {
+                    states.remove(key);
+                    changed.put(key, userId);
+                }
+                continue;
+            }
+            evaluate(key, userId, 0.0, state.getThreshold(), now);
+        }
+    }
+
+    /**
+     * Users in TRIPPED or COOLDOWN, whose state can change as usage ages out of the window
+     * even when they report nothing new.
+     */
+    public Set<Long> activeUserIds() {
+        final Set<Long> active = new HashSet<>();
+        states.forEach((key, state) -> {
+            if (state.getState() != AlertState.OK) {
+                active.add(ownerOf(key, state));
+            }
+        });
+        return active;
+    }
+
+    public AlertState getState(Long key) {
+        final UserAlertState state = states.get(key);
+        return state == null ? AlertState.OK : state.getState();
+    }
+
+    /**
+     * Replaces the states of users on {@code partitions} with those in the changelog. If the
+     * changelog cannot be read in time the users start without state, so an alert in
+     * progress may be published again.
+     */
+    public void restore(Collection<Integer> partitions) {
+        drop(partitions);
+        final List<TopicPartition> topicPartitions = partitions.stream()
+                .map(partition -> new TopicPartition(changelogTopic, partition))
+                .toList();
+        final long deadline = System.currentTimeMillis() + restoreTimeout.toMillis();
+        int restored = 0;
+        try (Consumer<String, byte[]> consumer = changelogConsumerFactory.createConsumer()) {
+            consumer.assign(topicPartitions);
+            consumer.seekToBeginning(topicPartitions);
+            final Map<TopicPartition, Long> endOffsets = consumer.endOffsets(topicPartitions);
+            while (!caughtUp(consumer, endOffsets)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("not caught up after " + restoreTimeout);
+                }
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                    final Long key = Long.valueOf(record.key());
+                    if (record.value() == null) {
+                        states.remove(key);
+                    } else {
+                        states.put(key, jsonMapper.readValue(record.value(), UserAlertState.class));
+                    }
+                    restored++;
+                }
+            }
+        } catch (RuntimeException e) {
+            drop(partitions);
+            log.warn("Could not restore alert state of partitions {} from {}, starting them clean: {}",
+                    partitions, changelogTopic, e.getMessage());
+            return;
+        }
+        log.info("Restored alert state of partitions {} from {} ({} records)", partitions, changelogTopic, restored);
+    }
+
+    /**
+     * Forgets the states of users on {@code partitions}, which another replica takes over.
+     * Call {@link #persist()} first so it finds them in the changelog.
+     */
+    public void drop(Collection<Integer> partitions) {
+        states.entrySet().removeIf(entry ->
+                partitions.contains(alertPartitioner.partitionOf(ownerOf(entry.getKey(), entry.getValue()))));
+        changed.values().removeIf(userId -> partitions.contains(alertPartitioner.partitionOf(userId)));
+    }
+
+    /**
+     * Writes the states changed since the last call to the changelog, removed ones as
+     * tombstones, and waits until the broker has them. Changes of users this replica no
+     * longer owns are discarded; changes that fail to send are retried on the next call.
+     */
+    public void persist() {
+        if (changed.isEmpty()) {
+            return;
+        }
+        final Map<Long, Long> batch = new HashMap<>(changed);
+        batch.forEach(changed::remove);
+        final List<CompletableFuture<?>> sends = new ArrayList<>(batch.size());
+        batch.forEach((key, userId) -> {
+            if (!alertPartitioner.owns(userId)) {
+                return;
+            }
+            final UserAlertState state = states.get(key);
+            sends.add(changelogTemplate.send(changelogTopic, alertPartitioner.partitionOf(userId), String.valueOf(key),
+                    state == null ? null : jsonMapper.writeValueAsBytes(state)));
+        });
+        try {
+            CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).join();
+        } catch (RuntimeException e) {
+            batch.forEach(changed::putIfAbsent);
+            log.warn("Failed to persist {} alert states to {}: {}", batch.size(), changelogTopic, e.getMessage());
+        }
+    }
+
+    private static boolean caughtUp(Consumer<String, byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+        for (Map.Entry<TopicPartition, Long> end : endOffsets.entrySet()) {
+            if (consumer.position(end.getKey()) < end.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // States saved before owners were recorded are keyed by their user
+    private static Long ownerOf(Long key, UserAlertState state) {
+        return state.getUserId() != null ? state.getUserId() : key;
+    }
+
+    private void transition(Long key, Long userId, AlertState next, long now, long lastNotifiedAt, double threshold) {
+        final UserAlertState previous = states.get(key);
+        if (previous != null && previous.getState() != next) {
+            log.info("Alert {} of user {} state {} -> {}", key, userId, previous.getState(), next);
+        }
+        states.put(key, UserAlertState.builder()
+                .userId(userId)
+                .state(next)
+                .since(now)
+                .lastNotifiedAt(lastNotifiedAt)
+                .threshold(threshold)
+                .build());
+        changed.put(key, userId);
+    }
+}
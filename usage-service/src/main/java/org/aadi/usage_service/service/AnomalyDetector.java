@@ -0,0 +1,222 @@
+package org.aadi.usage_service.service;
+
+import org.aadi.usage_service.model.DeviceAnomaly;
+import org.aadi.usage_service.util.DeviceStateTable;
+import org.aadi.usage_service.util.PartitionOffsets;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Online per-device anomaly detection, fed inline from the energy-usage listener.
+ * <p>
+ * Readings are summed per hour. When an hour closes, its total updates an exponentially
+ * weighted mean and variance of the device's hourly consumption (hours without readings
+ * count as zero). While an hour is still open, its running total is compared against
+ * {@code mean + sensitivity * stddev}. A device is reported at most once per hour, and
+ * only after {@code usage.anomaly.min-hours} hours of history. Nothing is read from
+ * InfluxDB.
+ * <p>
+ * Baselines are rows of a {@link DeviceStateTable} (36 bytes per slot, 48 per device at
+ * its 0.75 load factor, no per-reading allocation); devices silent for a week are pruned
+ * hourly. They are snapshotted with the offsets they cover, like the rolling window.
+ */
+@Service
+public class AnomalyDetector {
+
+    private static final long HOUR_MILLIS = Duration.ofHours(1).toMillis();
+    // Longer silences only decay the baseline towards zero; stop folding after a week
+    private static final int MAX_GAP_HOURS = 168;
+
+    private static final int SNAPSHOT_MAGIC = 0x55414E4F;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES;
+
+    private final boolean enabled;
+    private final double alpha;
+    private final double sensitivity;
+    private final int minHours;
+    private final double minExcess;
+
+    // int columns
+    private static final int HOUR = 0;
+    private static final int HOURS = 1;
+    private static final int REPORTED_HOUR = 2;
+    // float columns
+    private static final int HOUR_TOTAL = 0;
+    private static final int MEAN = 1;
+    private static final int VARIANCE = 2;
+    private static final int AVERAGE = 3;
+
+    private final DeviceStateTable baselines;
+    private final PartitionOffsets offsets = new PartitionOffsets();
+
+    public AnomalyDetector(@Value("${usage.anomaly.enabled:true}") boolean enabled,
+                           @Value("${usage.anomaly.alpha:0.1}") double alpha,
+                           @Value("${usage.anomaly.sensitivity:4}") double sensitivity,
+                           @Value("${usage.anomaly.min-hours:24}") int minHours,
+                           @Value("${usage.anomaly.min-excess:0.5}") double minExcess,
+                           @Value("${usage.aggregation.expected-devices:100000}") int expectedDevices) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalStateException("usage.anomaly.alpha must be in (0, 1]");
+        }
+        this.enabled = enabled;
+        this.alpha = alpha;
+        this.sensitivity = sensitivity;
+        this.minHours = minHours;
+        this.minExcess = minExcess;
+        this.baselines = new DeviceStateTable(expectedDevices, 0.75f, 0, 3, 4, 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Folds a reading into the device's baseline and returns an anomaly if it pushes the
+     * current hour over the device's threshold for the first time, otherwise null.
+     * Readings for hours that have already closed, and records at offsets already applied
+     * (replayed after a snapshot restore), are ignored.
+     */
+    public DeviceAnomaly observe(int partition, long offset, Long deviceId, double energyConsumed, Instant timestamp) {
+        if (!enabled) {
+            return null;
+        }
+        final int readingHour = (int) Math.floorDiv(timestamp.toEpochMilli(), HOUR_MILLIS);
+        synchronized (baselines) {
+            if (offsets.isApplied(partition, offset)) {
+                return null;
+            }
+            offsets.advance(partition, offset);
+            int slot = baselines.find(deviceId);
+            if (slot < 0) {
+                slot = baselines.insert(deviceId);
+                baselines.setInt(HOUR, slot, readingHour);
+            }
+            final int hour = baselines.getInt(HOUR, slot);
+            if (readingHour < hour) {
+                return null;
+            }
+            if (readingHour > hour) {
+                close(slot, baselines.getFloat(HOUR_TOTAL, slot));
+                final int gap = Math.min(readingHour - hour - 1, MAX_GAP_HOURS);
+                for (int i = 0; i < gap; i++) {
+                    close(slot, 0f);
+                }
+                baselines.setInt(HOUR, slot, readingHour);
+                baselines.setFloat(HOUR_TOTAL, slot, 0f);
+            }
+            final float hourTotal = baselines.getFloat(HOUR_TOTAL, slot) + (float) energyConsumed;
+            baselines.setFloat(HOUR_TOTAL, slot, hourTotal);
+
+            if (baselines.getInt(HOURS, slot) < minHours || baselines.getInt(REPORTED_HOUR, slot) == readingHour) {
+                return null;
+            }
+            final double mean = baselines.getFloat(MEAN, slot);
+            final double threshold = Math.max(mean + sensitivity * Math.sqrt(baselines.getFloat(VARIANCE, slot)),
+                    mean + minExcess);
+            if (hourTotal <= threshold) {
+                return null;
+            }
+            baselines.setInt(REPORTED_HOUR, slot, readingHour);
+            return new DeviceAnomaly(deviceId, Instant.ofEpochMilli(readingHour * HOUR_MILLIS),
+                    hourTotal, mean, baselines.getFloat(AVERAGE, slot), threshold);
+        }
+    }
+
+    /**
+     * Offset of {@code partition} the baselines continue from, or -1 if not known.
+     */
+    public long resumeOffset(int partition) {
+        synchronized (baselines) {
+            return offsets.get(partition);
+        }
+    }
+
+    public void writeSnapshot(FileChannel channel) throws IOException {
+        final DeviceStateTable.Snapshot snapshot;
+        final long position;
+        synchronized (baselines) {
+            final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES)
+                    .putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION)
+                    .putLong(System.currentTimeMillis())
+                    .flip();
+            long headerEnd = 0;
+            while (header.hasRemaining()) {
+                headerEnd += channel.write(header, headerEnd);
+            }
+            position = offsets.writeTo(channel, headerEnd);
+            snapshot = baselines.beginSnapshot();
+        }
+        // Written outside the lock so the listener keeps observing readings
+        snapshot.writeTo(channel, position);
+    }
+
+    /**
+     * Restores baselines from a snapshot. Returns false if it is older than {@code maxAge}.
+     */
+    public boolean readSnapshot(FileChannel channel, Duration maxAge) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        header.flip();
+        if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Not an anomaly baseline snapshot");
+        }
+        final long writtenAt = header.getLong();
+        if (System.currentTimeMillis() - writtenAt > maxAge.toMillis()) {
+            return false;
+        }
+        synchronized (baselines) {
+            try {
+                baselines.readFrom(channel, offsets.readFrom(channel, SNAPSHOT_HEADER_BYTES));
+            } catch (IOException | RuntimeException e) {
+                baselines.clear();
+                offsets.clear();
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "1h", initialDelayString = "1h")
+    public void prune() {
+        final int oldest = (int) (System.currentTimeMillis() / HOUR_MILLIS) - MAX_GAP_HOURS;
+        synchronized (baselines) {
+            for (int slot = 0; slot < baselines.capacity(); slot++) {
+                // Removal shifts the next entry into this slot, so look at it again
+                while (baselines.isOccupied(slot) && baselines.getInt(HOUR, slot) < oldest) {
+                    baselines.removeAt(slot);
+                }
+            }
+        }
+    }
+
+    private void close(int slot, float total) {
+        final int hours = baselines.getInt(HOURS, slot);
+        if (hours == 0) {
+            baselines.setFloat(MEAN, slot, total);
+        } else {
+            final float mean = baselines.getFloat(MEAN, slot);
+            final float diff = total - mean;
+            final float increment = (float) alpha * diff;
+            baselines.setFloat(MEAN, slot, mean + increment);
+            baselines.setFloat(VARIANCE, slot,
+                    (float) ((1 - alpha) * (baselines.getFloat(VARIANCE, slot) + diff * increment)));
+        }
+        final float average = baselines.getFloat(AVERAGE, slot);
+        baselines.setFloat(AVERAGE, slot, average + (total - average) / (hours + 1));
+        if (hours < Integer.MAX_VALUE) {
+            baselines.setInt(HOURS, slot, hours + 1);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.aadi.usage_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.dto.DeviceDto;
+import org.aadi.usage_service.dto.EnergyBudgetDto;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates users' energy budgets against the in-memory rolling aggregates.
+ * <p>
+ * Budgets are compiled into flat arrays: per rule its window and limit, plus the slots of
+ * the devices it covers (all of the user's devices, one device, or the devices of one
+ * type). Evaluation first reads each device's total once per window in use, then sums
+ * every rule's slots in a single pass, so the cost is linear in rules and devices and no
+ * rule issues its own InfluxDB query.
+ */
+@Slf4j
+@Service
+public class BudgetEvaluator {
+
+    private final RollingUsageAggregator rollingUsageAggregator;
+
+    public BudgetEvaluator(RollingUsageAggregator rollingUsageAggregator) {
+        this.rollingUsageAggregator = rollingUsageAggregator;
+    }
+
+    /**
+     * Compiles the budgets of the given users. Budgets with an unknown window or scope, a
+     * window longer than the aggregates hold, or a device the user does not own are skipped.
+     */
+    public CompiledBudgets compile(Map<Long, List<EnergyBudgetDto>> budgetsByUser,
+                                   Map<Long, List<DeviceDto>> devicesByUser) {
+        final CompiledBudgets compiled = new CompiledBudgets();
+        budgetsByUser.forEach((userId, budgets) -> {
+            final List<DeviceDto> devices = devicesByUser.getOrDefault(userId, List.of());
+            for (EnergyBudgetDto budget : budgets) {
+                final Window window = Window.parse(budget.window());
+                if (window == null || !window.supportedBy(rollingUsageAggregator)) {
+                    log.debug("Skipping budget {} with unsupported window {}", budget.id(), budget.window());
+                    continue;
+                }
+                final int first = compiled.slotCount;
+                for (DeviceDto device : devices) {
+                    if (device != null && device.id() != null && matches(budget, device)) {
+                        compiled.addSlot(device.id());
+                    }
+                }
+                if (compiled.slotCount == first && !"USER".equals(budget.scope())) {
+                    log.debug("Skipping budget {} of user {} matching none of their devices", budget.id(), userId);
+                    continue;
+                }
+                compiled.addRule(budget, userId, window, first);
+            }
+        });
+        return compiled;
+    }
+
+    private static boolean matches(EnergyBudgetDto budget, DeviceDto device) {
+        return switch (budget.scope() == null ? "" : budget.scope()) {
+            case "USER" -> true;
+            case "DEVICE" -> device.id().equals(budget.deviceId());
+            case "DEVICE_TYPE" -> device.type() != null && device.type().equalsIgnoreCase(budget.deviceType());
+            default -> false;
+        };
+    }
+
+    /**
+     * Budget windows and where their totals come from in the aggregator.
+     */
+    enum Window {
+        HOUR(Duration.ofHours(1)),
+        DAY(Duration.ofDays(1)),
+        MONTH(null);
+
+        private final Duration span;
+
+        Window(Duration span) {
+            this.span = span;
+        }
+
+        private static Window parse(String name) {
+            for (Window window : values()) {
+                if (window.name().equals(name)) {
+                    return window;
+                }
+            }
+            return null;
+        }
+
+        private boolean supportedBy(RollingUsageAggregator aggregator) {
+            return span == null || aggregator.covers(span);
+        }
+
+        private double total(RollingUsageAggregator aggregator, Long deviceId) {
+            return span == null ? aggregator.longTotal(deviceId) : aggregator.recentTotal(deviceId, span);
+        }
+    }
+
+    /**
+     * Flat form of a set of budgets. Rule {@code i} covers the device slots
+     * {@code ruleDevices[ruleStart[i] .. ruleStart[i + 1])}; {@link #evaluate()} fills
+     * {@link #consumption(int)} for every rule.
+     */
+    public final class CompiledBudgets {
+        private EnergyBudgetDto[] budgets = new EnergyBudgetDto[16];
+        private Long[] userIds = new Long[16];
+        private Window[] windows = new Window[16];
+        private int[] ruleStart = new int[17];
+        private double[] consumption = new double[16];
+        private int ruleCount;
+
+        private int[] ruleDevices = new int[64];
+        private int slotCount;
+
+        private final Map<Long, Integer> deviceSlots = new HashMap<>();
+        private long[] deviceIds = new long[64];
+
+        private CompiledBudgets() {
+        }
+
+        private void addSlot(Long deviceId) {
+            final Integer slot = deviceSlots.computeIfAbsent(deviceId, id -> {
+                final int next = deviceSlots.size();
+                if (next == deviceIds.length) {
+                    deviceIds = Arrays.copyOf(deviceIds, next * 2);
+                }
+                deviceIds[next] = id;
+                return next;
+            });
+            if (slotCount == ruleDevices.length) {
+                ruleDevices = Arrays.copyOf(ruleDevices, slotCount * 2);
+            }
+            ruleDevices[slotCount++] = slot;
+        }
+
+        private void addRule(EnergyBudgetDto budget, Long userId, Window window, int first) {
+            if (ruleCount == budgets.length) {
+                final int capacity = ruleCount * 2;
+                budgets = Arrays.copyOf(budgets, capacity);
+                userIds = Arrays.copyOf(userIds, capacity);
+                windows = Arrays.copyOf(windows, capacity);
+                ruleStart = Arrays.copyOf(ruleStart, capacity + 1);
+                consumption = Arrays.copyOf(consumption, capacity);
+            }
+            budgets[ruleCount] = budget;
+            userIds[ruleCount] = userId;
+            windows[ruleCount] = window;
+            ruleStart[ruleCount] = first;
+            ruleCount++;
+            ruleStart[ruleCount] = slotCount;
+        }
+
+        /**
+         * Computes every rule's consumption: one aggregator read per device and window in
+         * use, then one pass over the rules.
+         */
+        public CompiledBudgets evaluate() {
+            final int deviceCount = deviceSlots.size();
+            final double[][] totals = new double[Window.values().length][];
+            for (int i = 0; i < ruleCount; i++) {
+                final Window window = windows[i];
+                if (totals[window.ordinal()] == null) {
+                    final double[] windowTotals = new double[deviceCount];
+                    for (int slot = 0; slot < deviceCount; slot++) {
+                        windowTotals[slot] = window.total(rollingUsageAggregator, deviceIds[slot]);
+                    }
+                    totals[window.ordinal()] = windowTotals;
+                }
+            }
+            for (int i = 0; i < ruleCount; i++) {
+                final double[] windowTotals = totals[windows[i].ordinal()];
+                double sum = 0.0;
+                for (int j = ruleStart[i]; j < ruleStart[i + 1]; j++) {
+                    sum += windowTotals[ruleDevices[j]];
+                }
+                consumption[i] = sum;
+            }
+            return this;
+        }
+
+        public int size() {
+            return ruleCount;
+        }
+
+        public EnergyBudgetDto budget(int rule) {
+            return budgets[rule];
+        }
+
+        public Long userId(int rule) {
+            return userIds[rule];
+        }
+
+        public double consumption(int rule) {
+            return consumption[rule];
+        }
+    }
+}
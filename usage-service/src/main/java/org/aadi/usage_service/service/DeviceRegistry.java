@@ -0,0 +1,150 @@
+package org.aadi.usage_service.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.client.DeviceClient;
+import org.aadi.usage_service.dto.DeviceDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded local copy of device-service's device records, used to resolve which user a
+ * device belongs to and to tag usage points. Entries expire after {@code usage.device-cache.ttl}; every miss in
+ * a lookup is filled with a single call to the bulk device endpoint. Ids device-service does
+ * not know are remembered for {@code usage.device-cache.negative-ttl}, so readings of
+ * unregistered devices do not ask for them again on every poll.
+ */
+@Slf4j
+@Service
+public class DeviceRegistry {
+
+    private final DeviceClient deviceClient;
+    private final Cache<Long, DeviceDto> devices;
+    private final Cache<Long, List<DeviceDto>> userDevices;
+    private final Cache<Long, Boolean> unknownDevices;
+
+    public DeviceRegistry(DeviceClient deviceClient,
+                          MeterRegistry meterRegistry,
+                          @Value("${usage.device-cache.max-size:100000}") long maxSize,
+                          @Value("${usage.device-cache.ttl:10m}") Duration ttl,
+                          @Value("${usage.device-cache.negative-ttl:1m}") Duration negativeTtl) {
+        this.deviceClient = deviceClient;
+        this.devices = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.userDevices = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.unknownDevices = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(negativeTtl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, devices, "device-registry");
+        CaffeineCacheMetrics.monitor(meterRegistry, userDevices, "user-devices");
+        CaffeineCacheMetrics.monitor(meterRegistry, unknownDevices, "unknown-devices");
+    }
+
+    /**
+     * Returns the known devices among {@code deviceIds}. Unknown ids are left out, and if
+     * device-service cannot be reached only the cached entries are returned.
+     */
+    public Map<Long, DeviceDto> getDevices(Collection<Long> deviceIds) {
+        final List<Long> candidates = new ArrayList<>(deviceIds.size());
+        for (Long deviceId : deviceIds) {
+            if (unknownDevices.getIfPresent(deviceId) == null) {
+                candidates.add(deviceId);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Map.of();
+        }
+        try {
+            return devices.getAll(candidates, this::loadDevices);
+        } catch (Exception e) {
+            log.warn("Failed to load {} devices from device-service, using cached entries only: {}",
+                    candidates.size(), e.getMessage());
+            return devices.getAllPresent(candidates);
+        }
+    }
+
+    public DeviceDto getDevice(Long deviceId) {
+        return getDevices(Set.of(deviceId)).get(deviceId);
+    }
+
+    /**
+     * All devices owned by {@code userId}, loaded from device-service on a miss. Loaded
+     * devices are also added to the per-device cache.
+     */
+    public List<DeviceDto> getDevicesForUser(Long userId) {
+        return userDevices.get(userId, id -> {
+            final List<DeviceDto> loaded = deviceClient.getAllDevicesForUser(id);
+            for (DeviceDto device : loaded) {
+                if (device != null && device.id() != null) {
+                    devices.put(device.id(), device);
+                    unknownDevices.invalidate(device.id());
+                }
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * Devices of each of {@code userIds}; users missing from the cache are loaded together
+     * with one bulk call. Users without devices map to an empty list.
+     */
+    public Map<Long, List<DeviceDto>> getDevicesForUsers(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        return userDevices.getAll(userIds, this::loadUserDevices);
+    }
+
+    private Map<Long, List<DeviceDto>> loadUserDevices(Set<? extends Long> missingUserIds) {
+        log.debug("Loading devices of {} users from device-service", missingUserIds.size());
+        final Map<Long, List<DeviceDto>> loaded = new HashMap<>();
+        for (Long userId : missingUserIds) {
+            loaded.put(userId, new ArrayList<>());
+        }
+        for (DeviceDto device : deviceClient.getDevicesForUsers(new ArrayList<>(missingUserIds))) {
+            if (device == null || device.id() == null || !loaded.containsKey(device.userId())) {
+                continue;
+            }
+            loaded.get(device.userId()).add(device);
+            devices.put(device.id(), device);
+            unknownDevices.invalidate(device.id());
+        }
+        return loaded;
+    }
+
+    private Map<Long, DeviceDto> loadDevices(Set<? extends Long> missingIds) {
+        log.debug("Loading {} devices from device-service", missingIds.size());
+        final Map<Long, DeviceDto> loaded = new HashMap<>();
+        for (DeviceDto device : deviceClient.getDevicesByIds(new ArrayList<>(missingIds))) {
+            if (device != null && device.id() != null) {
+                loaded.put(device.id(), device);
+            }
+        }
+        for (Long deviceId : missingIds) {
+            if (!loaded.containsKey(deviceId)) {
+                unknownDevices.put(deviceId, Boolean.TRUE);
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,114 @@
+package org.aadi.usage_service.service;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.dto.DeviceDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes energy usage points to InfluxDB in chunks on a small dedicated pool.
+ * The pool's queue is bounded; once it is full the calling listener thread writes
+ * the chunk itself, which throttles Kafka consumption instead of buffering without limit.
+ */
+@Slf4j
+@Service
+public class EnergyUsageWriter {
+
+    private final WriteApiBlocking writeApi;
+    private final String influxBucket;
+    private final String influxOrg;
+    private final int chunkSize;
+    private final ThreadPoolExecutor executor;
+
+    public EnergyUsageWriter(InfluxDBClient influxDBClient,
+                             @Value("${influx.bucket}") String influxBucket,
+                             @Value("${influx.org}") String influxOrg,
+                             @Value("${usage.influx.write.chunk-size:1000}") int chunkSize,
+                             @Value("${usage.influx.write.threads:4}") int threads,
+                             @Value("${usage.influx.write.queue-capacity:16}") int queueCapacity) {
+        this.writeApi = influxDBClient.getWriteApiBlocking();
+        this.influxBucket = influxBucket;
+        this.influxOrg = influxOrg;
+        this.chunkSize = chunkSize;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "influx-writer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Builds an {@code energy_usage} point. When the device is known the point is also tagged
+     * with its owner, type and location so per-user and per-room queries need no device lookup.
+     */
+    public Point toPoint(Long deviceId, double energyConsumed, Instant timestamp, DeviceDto device) {
+        final Point point = Point.measurement("energy_usage")
+                .addTag("deviceId", String.valueOf(deviceId))
+                .addField("energyConsumed", energyConsumed)
+                .time(timestamp, WritePrecision.MS);
+        if (device != null) {
+            if (device.userId() != null) {
+                point.addTag("userId", String.valueOf(device.userId()));
+            }
+            if (device.type() != null) {
+                point.addTag("type", device.type());
+            }
+            if (device.location() != null && !device.location().isBlank()) {
+                point.addTag("location", device.location());
+            }
+        }
+        return point;
+    }
+
+    /**
+     * Writes all points and returns once every chunk has been accepted by InfluxDB.
+     * Throws if any chunk fails, so the caller can leave the Kafka offsets uncommitted.
+     */
+    public void write(List<Point> points) {
+        if (points.isEmpty()) {
+            return;
+        }
+
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int from = 0; from < points.size(); from += chunkSize) {
+            final List<Point> chunk = points.subList(from, Math.min(from + chunkSize, points.size()));
+            writes.add(CompletableFuture.runAsync(
+                    () -> writeApi.writePoints(influxBucket, influxOrg, chunk), executor));
+        }
+
+        CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).join();
+        log.debug("Wrote {} energy usage points in {} chunk(s)", points.size(), writes.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
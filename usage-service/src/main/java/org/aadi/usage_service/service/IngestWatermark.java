@@ -0,0 +1,97 @@
+package org.aadi.usage_service.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.springframework.boot.kafka.autoconfigure.KafkaProperties;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time up to which energy-usage has been written to InfluxDB, read from the offsets the
+ * usage-service listener group has committed (it commits only after the write). With no
+ * lag that is now; otherwise it is the publish time of the oldest record still uncommitted
+ * on any partition. Rollups are held back to it, so a lagging listener delays them instead
+ * of leaving its points out.
+ */
+@Slf4j
+@Service
+public class IngestWatermark {
+
+    private static final String TOPIC = "energy-usage";
+    private static final String GROUP = "usage-service";
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final Admin admin;
+    private final Consumer<byte[], byte[]> consumer;
+
+    public IngestWatermark(KafkaAdmin kafkaAdmin, KafkaProperties kafkaProperties) {
+        this.admin = Admin.create(kafkaAdmin.getConfigurationProperties());
+        final Map<String, Object> properties = kafkaProperties.buildConsumerProperties();
+        properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        properties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 1);
+        // Only peeks at single records; must never join or commit for the listener group
+        properties.remove(ConsumerConfig.GROUP_ID_CONFIG);
+        this.consumer = new KafkaConsumer<>(properties);
+    }
+
+    /**
+     * Throws if the offsets cannot be read; callers should not advance on a guess.
+     */
+    public synchronized Instant current() throws Exception {
+        final long now = System.currentTimeMillis();
+        final List<TopicPartition> partitions = new ArrayList<>();
+        for (PartitionInfo info : consumer.partitionsFor(TOPIC, TIMEOUT)) {
+            partitions.add(new TopicPartition(TOPIC, info.partition()));
+        }
+        final Map<TopicPartition, OffsetAndMetadata> committed = admin.listConsumerGroupOffsets(GROUP)
+                .partitionsToOffsetAndMetadata()
+                .get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        final Map<TopicPartition, Long> beginnings = consumer.beginningOffsets(partitions, TIMEOUT);
+        final Map<TopicPartition, Long> ends = consumer.endOffsets(partitions, TIMEOUT);
+
+        long watermark = now;
+        for (TopicPartition partition : partitions) {
+            final OffsetAndMetadata offset = committed.get(partition);
+            final long next = Math.max(offset == null ? 0L : offset.offset(), beginnings.get(partition));
+            if (next < ends.get(partition)) {
+                watermark = Math.min(watermark, publishedAt(partition, next, now));
+            }
+        }
+        return Instant.ofEpochMilli(watermark);
+    }
+
+    private long publishedAt(TopicPartition partition, long offset, long fallback) {
+        consumer.assign(List.of(partition));
+        consumer.seek(partition, offset);
+        for (ConsumerRecord<byte[], byte[]> record : consumer.poll(TIMEOUT)) {
+            return record.timestamp();
+        }
+        // Nothing came back in time; do not hold rollups on a partition we cannot read
+        log.warn("Could not read the oldest uncommitted record of {} at offset {}", partition, offset);
+        return fallback;
+    }
+
+    @PreDestroy
+    public void close() {
+        consumer.close(TIMEOUT);
+        admin.close(TIMEOUT);
+    }
+}
@@ -0,0 +1,751 @@
+package org.aadi.usage_service.service;
+
+import com.influxdb.Cancellable;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.kafka.event.UserUsageEvent;
+import org.aadi.usage_service.util.DeviceStateTable;
+import org.aadi.usage_service.util.DirtyIdSet;
+import org.aadi.usage_service.util.PartitionOffsets;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.aadi.usage_service.util.FluxQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.listener.ConsumerSeekAware.ConsumerSeekCallback;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+
+/**
+ * Keeps a rolling total of energy consumed per device over the alerting window for the
+ * users this replica evaluates, fed from its partitions of {@code energy-usage-by-user}
+ * (see {@link AlertPartitioner}). Each device has a ring of fixed-width buckets, and a
+ * second ring of daily buckets covers {@code usage.aggregation.long-window} for budgets
+ * over longer periods. Reading a device's total never touches InfluxDB.
+ * <p>
+ * State lives in a {@link DeviceStateTable}: per device its owner, the open bucket and day
+ * as float sums, and the closed buckets and days as 16-bit integers scaled by a power of two
+ * per ring. The scale is the smallest that fits the ring's largest value, so it grows
+ * instead of overflowing and every closed value is kept to within 1/65534 of that largest
+ * one. A slot costs {@code 36 + 2 * (window / bucket + long-window days)} bytes, 144 bytes
+ * with hourly buckets, and the table is sized for {@code usage.aggregation.expected-devices}
+ * at the load factor: 192 bytes per device at 0.75, so 1 million devices take about 190 MB
+ * and 5 million about 960 MB. Growing past the expected size doubles the table and briefly
+ * needs both copies, so it is logged. Recording a reading allocates nothing.
+ * <p>
+ * InfluxDB is only read when the window listener is assigned a partition the window holds
+ * no state for. Its devices are rebuilt from raw points, and their daily ring from the
+ * rollups, on the listener's thread before any of its records are consumed; partitions
+ * assigned together share one rebuild, which reads the whole window once. Until a
+ * partition is rebuilt, or if its rebuild fails, it is cold: its records are not applied
+ * and callers fall back to a query for its users. A failed rebuild is retried after
+ * {@code usage.aggregation.rebuild-retry-interval}.
+ * <p>
+ * Readings are republished only after InfluxDB has them, so a record published before a
+ * rebuild finished and stamped before the rebuild's stop time may already be in the rebuilt
+ * totals; such records are skipped rather than counted twice. The one reading this can
+ * miss is one written to InfluxDB while the rebuild query was running, after the query had
+ * read its series. A revoked partition's devices and
+ * offsets are dropped. The window tracks the offsets it has applied, so records replayed
+ * after a snapshot restore are folded in exactly once (see {@link StateSnapshotter}).
+ */
+@Slf4j
+@Service
+public class RollingUsageAggregator {
+
+    private static final long DAY_MILLIS = Duration.ofDays(1).toMillis();
+
+    private static final int SNAPSHOT_MAGIC = 0x5557494E;
+    private static final int SNAPSHOT_VERSION = 4;
+    private static final int SNAPSHOT_HEADER_BYTES = 2 * Integer.BYTES + 2 * Long.BYTES + 2 * Integer.BYTES;
+
+    // Finest scale a ring goes down to, 2^-64
+    private static final int MIN_EXPONENT = -64;
+
+    // long columns
+    private static final int USER_ID = 0;
+    // int columns: index of the open bucket and day, i.e. of the newest reading
+    private static final int BUCKET = 0;
+    private static final int DAY = 1;
+    // float columns: usage in the open bucket and day
+    private static final int BUCKET_SUM = 0;
+    private static final int DAY_SUM = 1;
+    // short columns: scale exponent of each ring, then the closed bucket and day rings
+    private static final int BUCKET_EXPONENT = 0;
+    private static final int DAY_EXPONENT = 1;
+    private static final int BUCKET_RING = 2;
+
+    private final InfluxDBClient influxDBClient;
+    private final UsageRollupService usageRollupService;
+    private final AlertPartitioner alertPartitioner;
+    private final String influxBucket;
+    private final String influxOrg;
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int dayCount;
+    private final Duration rebuildTimeout;
+    private final long rebuildRetryMillis;
+
+    // Short columns from BUCKET_RING: bucketCount closed buckets, then dayCount closed days
+    private final DeviceStateTable table;
+    private final int dayRing;
+    private int capacity;
+    private final PartitionOffsets offsets = new PartitionOffsets();
+    private final DirtyIdSet dirtyDevices = new DirtyIdSet();
+    // Partitions assigned to the window listener, and those of them the table is complete for; guarded by table
+    private final Set<Integer> assigned = new HashSet<>();
+    private final Set<Integer> warm = new HashSet<>();
+    private final Map<Integer, Rebuilt> rebuilt = new HashMap<>();
+    private long nextRebuildAt;
+    // Set by a snapshot restore until the first assignment says which restored partitions are still ours
+    private boolean restoredUnclaimed;
+
+    public RollingUsageAggregator(InfluxDBClient influxDBClient,
+                                  UsageRollupService usageRollupService,
+                                  AlertPartitioner alertPartitioner,
+                                  @Value("${influx.bucket}") String influxBucket,
+                                  @Value("${influx.org}") String influxOrg,
+                                  @Value("${usage.aggregation.window:24h}") Duration window,
+                                  @Value("${usage.aggregation.bucket:1h}") Duration bucket,
+                                  @Value("${usage.aggregation.long-window:30d}") Duration longWindow,
+                                  @Value("${usage.aggregation.expected-devices:100000}") int expectedDevices,
+                                  @Value("${usage.aggregation.load-factor:0.75}") float loadFactor,
+                                  @Value("${usage.aggregation.rebuild-timeout:2m}") Duration rebuildTimeout,
+                                  @Value("${usage.aggregation.rebuild-retry-interval:5m}") Duration rebuildRetryInterval) {
+        if (bucket.toSeconds() < 1 || window.toMillis() % bucket.toMillis() != 0) {
+            throw new IllegalStateException("usage.aggregation.window must be a multiple of usage.aggregation.bucket of at least 1s");
+        }
+        this.influxDBClient = influxDBClient;
+        this.usageRollupService = usageRollupService;
+        this.alertPartitioner = alertPartitioner;
+        this.influxBucket = influxBucket;
+        this.influxOrg = influxOrg;
+        this.bucketMillis = bucket.toMillis();
+        this.bucketCount = (int) (window.toMillis() / bucketMillis);
+        this.dayCount = (int) Math.max(1, longWindow.toDays());
+        this.rebuildTimeout = rebuildTimeout;
+        this.rebuildRetryMillis = rebuildRetryInterval.toMillis();
+        this.dayRing = BUCKET_RING + bucketCount;
+        this.table = new DeviceStateTable(expectedDevices, loadFactor, 1, 2, 2, dayRing + dayCount);
+        this.capacity = table.capacity();
+    }
+
+    /**
+     * Records a batch of energy-usage-by-user records under one acquisition of the table
+     * lock. Records at offsets the window already covers (replayed after a snapshot restore),
+     * records of cold partitions and malformed events are skipped. Cold partitions whose
+     * retry is due are rebuilt first; like the rebuild on assignment this runs on the window
+     * listener's thread, so no record of theirs is applied meanwhile.
+     */
+    public void record(List<ConsumerRecord<String, UserUsageEvent>> records) {
+        retryRebuild();
+        synchronized (table) {
+            for (ConsumerRecord<String, UserUsageEvent> record : records) {
+                // A cold partition's records are in InfluxDB, where its next rebuild reads them
+                if (!warm.contains(record.partition()) || offsets.isApplied(record.partition(), record.offset())) {
+                    continue;
+                }
+                offsets.advance(record.partition(), record.offset());
+                final UserUsageEvent event = record.value();
+                if (event != null && event.userId() != null && event.deviceId() != null && event.timestamp() != null
+                        && !coveredByRebuild(record.partition(), event.timestamp().toEpochMilli(), record.timestamp())) {
+                    recordLocked(event.userId(), event.deviceId(), event.timestamp().toEpochMilli(), event.energyConsumed());
+                    dirtyDevices.mark(event.deviceId());
+                }
+            }
+            checkGrowth();
+        }
+    }
+
+    /**
+     * Takes over partitions newly assigned to the window listener. Partitions restored from
+     * a snapshot continue from its offsets; the others are rebuilt from InfluxDB up to now
+     * and consumed from the first record published after that. Restored partitions missing
+     * from the first assignment have moved to another replica while this one was down and
+     * are dropped. Called on the window listener's thread.
+     */
+    public void assign(Collection<TopicPartition> partitions, ConsumerSeekCallback callback) {
+        final Set<Integer> cold = new HashSet<>();
+        synchronized (table) {
+            if (restoredUnclaimed) {
+                restoredUnclaimed = false;
+                final Set<Integer> claimed = new HashSet<>();
+                for (TopicPartition partition : partitions) {
+                    if (offsets.get(partition.partition()) >= 0) {
+                        claimed.add(partition.partition());
+                    }
+                }
+                for (int partition = 0; partition < offsets.partitions(); partition++) {
+                    if (!claimed.contains(partition)) {
+                        offsets.remove(partition);
+                    }
+                }
+                drop(partition -> !claimed.contains(partition));
+            }
+            for (TopicPartition partition : partitions) {
+                assigned.add(partition.partition());
+                final long offset = offsets.get(partition.partition());
+                if (offset >= 0) {
+                    warm.add(partition.partition());
+                    callback.seek(partition.topic(), partition.partition(), offset);
+                } else {
+                    cold.add(partition.partition());
+                }
+            }
+        }
+        if (cold.isEmpty()) {
+            return;
+        }
+        synchronized (table) {
+            // Nothing of a cold partition may remain for the rebuild to add onto
+            drop(cold::contains);
+        }
+        final Instant stop = Instant.now();
+        rebuild(cold, stop);
+        for (TopicPartition partition : partitions) {
+            if (cold.contains(partition.partition())) {
+                callback.seekToTimestamp(partition.topic(), partition.partition(), stop.toEpochMilli());
+            }
+        }
+    }
+
+    /**
+     * Drops the devices and offsets of partitions revoked from the window listener; another
+     * replica rebuilds or restores them.
+     */
+    public void release(Collection<TopicPartition> partitions) {
+        final Set<Integer> released = new HashSet<>();
+        for (TopicPartition partition : partitions) {
+            released.add(partition.partition());
+        }
+        synchronized (table) {
+            assigned.removeAll(released);
+            warm.removeAll(released);
+            released.forEach(offsets::remove);
+            rebuilt.keySet().removeAll(released);
+            drop(released::contains);
+        }
+    }
+
+    /**
+     * Devices that received usage since the previous call.
+     */
+    public long[] drainDirtyDevices() {
+        return dirtyDevices.drain();
+    }
+
+    /**
+     * Writes the window and the offsets it covers to {@code channel}. The lock is held to
+     * freeze the table and write the small header; the table itself is written out while
+     * ingest carries on (see {@link DeviceStateTable#beginSnapshot()}).
+     */
+    public void writeSnapshot(FileChannel channel) throws IOException {
+        final DeviceStateTable.Snapshot snapshot;
+        final long position;
+        synchronized (table) {
+            final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES)
+                    .putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION)
+                    .putLong(System.currentTimeMillis())
+                    .putLong(bucketMillis).putInt(bucketCount).putInt(dayCount)
+                    .flip();
+            long headerEnd = 0;
+            while (header.hasRemaining()) {
+                headerEnd += channel.write(header, headerEnd);
+            }
+            position = offsets.writeTo(channel, headerEnd);
+            snapshot = table.beginSnapshot();
+        }
+        snapshot.writeTo(channel, position);
+    }
+
+    /**
+     * Restores the window from a snapshot. Only partitions the snapshot has offsets for count
+     * as restored: once assigned they continue from those offsets instead of being rebuilt,
+     * and everything else is dropped on the first assignment (see {@link #assign}). Returns
+     * false and leaves the window empty if the snapshot was written with other bucket
+     * settings or is older than {@code maxAge}.
+     */
+    public boolean readSnapshot(FileChannel channel, Duration maxAge) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        header.flip();
+        if (header.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a rolling usage window snapshot");
+        }
+        if (header.getInt() != SNAPSHOT_VERSION) {
+            log.info("Rolling usage window snapshot has an older layout, ignoring it");
+            return false;
+        }
+        final long writtenAt = header.getLong();
+        if (header.getLong() != bucketMillis || header.getInt() != bucketCount || header.getInt() != dayCount) {
+            log.info("Rolling usage window snapshot has other bucket settings, ignoring it");
+            return false;
+        }
+        if (System.currentTimeMillis() - writtenAt > maxAge.toMillis()) {
+            log.info("Rolling usage window snapshot from {} is older than {}, ignoring it",
+                    Instant.ofEpochMilli(writtenAt), maxAge);
+            return false;
+        }
+        synchronized (table) {
+            try {
+                table.readFrom(channel, offsets.readFrom(channel, SNAPSHOT_HEADER_BYTES));
+            } catch (IOException | RuntimeException e) {
+                table.clear();
+                offsets.clear();
+                throw e;
+            }
+            restoredUnclaimed = true;
+        }
+        log.info("Restored rolling usage window for {} devices from snapshot of {}",
+                deviceCount(), Instant.ofEpochMilli(writtenAt));
+        return true;
+    }
+
+    /**
+     * Whether any assigned partition is warm, i.e. the window holds something worth
+     * snapshotting and evaluating.
+     */
+    public boolean isWarm() {
+        synchronized (table) {
+            return !warm.isEmpty();
+        }
+    }
+
+    /**
+     * Whether the window is complete for {@code userId}'s partition. Until then the
+     * in-memory totals do not cover the user and callers should fall back to a query.
+     */
+    public boolean isWarm(Long userId) {
+        final int partition = alertPartitioner.partitionOf(userId);
+        synchronized (table) {
+            return warm.contains(partition);
+        }
+    }
+
+    /**
+     * Assigned partitions the window is not complete for yet.
+     */
+    public Set<Integer> coldPartitions() {
+        synchronized (table) {
+            final Set<Integer> cold = new HashSet<>(assigned);
+            cold.removeAll(warm);
+            return cold;
+        }
+    }
+
+    public double rollingTotal(Long deviceId) {
+        synchronized (table) {
+            final int slot = table.find(deviceId);
+            return slot < 0 ? 0.0 : sumLast(slot, BUCKET, BUCKET_SUM, BUCKET_EXPONENT, BUCKET_RING, bucketCount, currentBucket(), bucketCount);
+        }
+    }
+
+    /**
+     * Whether {@link #recentTotal(Long, Duration)} can answer for {@code span}.
+     */
+    public boolean covers(Duration span) {
+        return span.toMillis() <= bucketMillis * bucketCount;
+    }
+
+    /**
+     * Energy consumed by the device over the most recent {@code span}, rounded up to whole
+     * buckets, which must not be longer than the alerting window.
+     */
+    public double recentTotal(Long deviceId, Duration span) {
+        final int buckets = (int) Math.ceil((double) span.toMillis() / bucketMillis);
+        if (buckets > bucketCount) {
+            throw new IllegalArgumentException(span + " is longer than the aggregation window");
+        }
+        synchronized (table) {
+            final int slot = table.find(deviceId);
+            return slot < 0 ? 0.0 : sumLast(slot, BUCKET, BUCKET_SUM, BUCKET_EXPONENT, BUCKET_RING, bucketCount, currentBucket(), buckets);
+        }
+    }
+
+    /**
+     * Energy consumed by the device over the long window, in whole UTC days: today so far
+     * plus the previous {@code long-window - 1} days.
+     */
+    public double longTotal(Long deviceId) {
+        synchronized (table) {
+            final int slot = table.find(deviceId);
+            return slot < 0 ? 0.0 : sumLast(slot, DAY, DAY_SUM, DAY_EXPONENT, dayRing, dayCount, currentDay(), dayCount);
+        }
+    }
+
+    /**
+     * Rolling totals per owner, summed straight from the table. Devices without a reading
+     * for the whole window and long window are dropped first.
+     */
+    public Map<Long, Double> userTotals() {
+        final long nowBucket = currentBucket();
+        // Per-user sums, kept as double bits so no value is boxed per device
+        final DeviceStateTable users = new DeviceStateTable(1024, 0.75f, 1, 0, 0, 0);
+        synchronized (table) {
+            expire(nowBucket, currentDay());
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (!table.isOccupied(slot)) {
+                    continue;
+                }
+                final long userId = table.getLong(USER_ID, slot);
+                if (userId == 0L) {
+                    continue;
+                }
+                final double total = sumLast(slot, BUCKET, BUCKET_SUM, BUCKET_EXPONENT, BUCKET_RING, bucketCount, nowBucket, bucketCount);
+                if (total > 0) {
+                    final int userSlot = users.insert(userId);
+                    users.setLong(0, userSlot, Double.doubleToRawLongBits(
+                            Double.longBitsToDouble(users.getLong(0, userSlot)) + total));
+                }
+            }
+        }
+        final Map<Long, Double> totals = new HashMap<>(users.size() * 2);
+        for (int slot = 0; slot < users.capacity(); slot++) {
+            if (users.isOccupied(slot)) {
+                totals.put(users.keyAt(slot), Double.longBitsToDouble(users.getLong(0, slot)));
+            }
+        }
+        return totals;
+    }
+
+    private void retryRebuild() {
+        final Set<Integer> cold;
+        synchronized (table) {
+            if (System.currentTimeMillis() < nextRebuildAt) {
+                return;
+            }
+            cold = new HashSet<>(assigned);
+            cold.removeAll(warm);
+        }
+        if (!cold.isEmpty()) {
+            rebuild(cold, Instant.now());
+        }
+    }
+
+    /**
+     * Rebuilds the devices of {@code partitions} from InfluxDB up to {@code stop} and marks
+     * the partitions warm. On failure their partial state is dropped and they stay cold.
+     */
+    private void rebuild(Set<Integer> partitions, Instant stop) {
+        if (influxBucket == null || influxOrg == null) {
+            log.error("InfluxDB configuration is missing - cannot rebuild rolling usage window");
+            synchronized (table) {
+                nextRebuildAt = System.currentTimeMillis() + rebuildRetryMillis;
+            }
+            return;
+        }
+        final long startedAt = System.currentTimeMillis();
+        final Instant start = stop.minusMillis(bucketMillis * bucketCount);
+        try {
+            final String fluxQuery = FluxQuery.of("""
+            from(bucket: params.bucket)
+              |> range(start: params.start, stop: params.stop)
+              |> filter(fn: (r) => r["_measurement"] == "energy_usage")
+              |> filter(fn: (r) => r["_field"] == "energyConsumed")
+              |> filter(fn: (r) => exists(r["userId"]) and exists(r["deviceId"]))
+              |> group(columns: ["userId", "deviceId"])
+              |> aggregateWindow(every: params.every, fn: sum, timeSrc: "_start", createEmpty: false)
+            """)
+                    .bind("bucket", influxBucket)
+                    .bind("start", start)
+                    .bind("stop", stop)
+                    .bind("every", Duration.ofMillis(bucketMillis))
+                    .build();
+            streamRebuild(fluxQuery, false, partitions);
+
+            // Whole days come from the daily rollup; only today is summed from finer data
+            usageRollupService.resolveWatermarks();
+            final Instant longStart = Instant.ofEpochMilli((currentDay() - dayCount + 1) * DAY_MILLIS);
+            final String longQuery = usageRollupService.usageSource(longStart, stop,
+                            "exists(r[\"userId\"]) and exists(r[\"deviceId\"])")
+                    .append("""
+                      |> group(columns: ["userId", "deviceId"])
+                      |> aggregateWindow(every: params.every, fn: sum, timeSrc: "_start", createEmpty: false)
+                    """)
+                    .bind("every", Duration.ofDays(1))
+                    .build();
+            streamRebuild(longQuery, true, partitions);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (table) {
+                drop(partitions::contains);
+                nextRebuildAt = System.currentTimeMillis() + rebuildRetryMillis;
+            }
+            log.warn("Could not rebuild rolling usage window for partitions {} from InfluxDB, "
+                    + "falling back to queries for their users: {}", partitions, e.getMessage());
+            return;
+        }
+
+        final Rebuilt coverage = new Rebuilt(stop.toEpochMilli(), System.currentTimeMillis());
+        synchronized (table) {
+            for (Integer partition : partitions) {
+                // Revoked while rebuilding if no longer assigned
+                if (assigned.contains(partition)) {
+                    warm.add(partition);
+                    rebuilt.put(partition, coverage);
+                }
+            }
+            checkGrowth();
+        }
+        log.info("Rebuilt rolling usage window for partitions {} in {} ms ({} devices)",
+                partitions, System.currentTimeMillis() - startedAt, deviceCount());
+    }
+
+    private void streamRebuild(String fluxQuery, boolean days, Set<Integer> partitions) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Cancellable> query = new AtomicReference<>();
+        final boolean[] abandoned = {false};
+        influxDBClient.getQueryApi().query(fluxQuery, influxOrg,
+                (cancellable, record) -> {
+                    query.compareAndSet(null, cancellable);
+                    // Checked under the table lock so nothing lands after the caller dropped the partial state
+                    synchronized (table) {
+                        if (abandoned[0]) {
+                            cancellable.cancel();
+                            return;
+                        }
+                        addRecord(record, days, partitions);
+                    }
+                },
+                error -> {
+                    failure.set(error);
+                    done.countDown();
+                },
+                done::countDown);
+
+        boolean completed = false;
+        try {
+            completed = done.await(rebuildTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!completed) {
+                abandon(query, abandoned);
+            }
+        }
+        if (!completed) {
+            throw new IllegalStateException("rebuild timed out after " + rebuildTimeout);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get().getMessage(), failure.get());
+        }
+    }
+
+    private void abandon(AtomicReference<Cancellable> query, boolean[] abandoned) {
+        final Cancellable cancellable = query.get();
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+        synchronized (table) {
+            abandoned[0] = true;
+        }
+    }
+
+    private void addRecord(FluxRecord record, boolean days, Set<Integer> partitions) {
+        Object userIdObj = record.getValueByKey("userId");
+        Object deviceIdObj = record.getValueByKey("deviceId");
+        Object value = record.getValue();
+        Instant time = record.getTime();
+        if (userIdObj == null || deviceIdObj == null || time == null || !(value instanceof Number number)) {
+            return;
+        }
+        try {
+            final long userId = Long.parseLong(userIdObj.toString());
+            final long deviceId = Long.parseLong(deviceIdObj.toString());
+            // The query reads every user; keep those of the partitions being rebuilt
+            if (!partitions.contains(alertPartitioner.partitionOf(userId))) {
+                return;
+            }
+            final long epochMillis = time.toEpochMilli();
+            synchronized (table) {
+                final int slot = table.insert(deviceId);
+                table.setLong(USER_ID, slot, userId);
+                if (days) {
+                    add(slot, DAY, DAY_SUM, DAY_EXPONENT, dayRing, dayCount, dayBucket(epochMillis), number.doubleValue());
+                } else {
+                    add(slot, BUCKET, BUCKET_SUM, BUCKET_EXPONENT, BUCKET_RING, bucketCount, recentBucket(epochMillis), number.doubleValue());
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Skipping rebuild record with invalid userId/deviceId: {}/{}", userIdObj, deviceIdObj);
+        }
+    }
+
+    private boolean coveredByRebuild(int partition, long epochMillis, long publishedAt) {
+        final Rebuilt coverage = rebuilt.get(partition);
+        return coverage != null && epochMillis < coverage.stop() && publishedAt <= coverage.finishedAt();
+    }
+
+    private void recordLocked(long userId, long deviceId, long epochMillis, double energyConsumed) {
+        final int slot = table.insert(deviceId);
+        table.setLong(USER_ID, slot, userId);
+        add(slot, BUCKET, BUCKET_SUM, BUCKET_EXPONENT, BUCKET_RING, bucketCount, recentBucket(epochMillis), energyConsumed);
+        add(slot, DAY, DAY_SUM, DAY_EXPONENT, dayRing, dayCount, dayBucket(epochMillis), energyConsumed);
+    }
+
+    /** Removes the devices whose owner's partition matches; caller holds the lock. */
+    private void drop(IntPredicate partitions) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            // Removal shifts the next entry into this slot, so look at it again
+            while (table.isOccupied(slot) && partitions.test(alertPartitioner.partitionOf(table.getLong(USER_ID, slot)))) {
+                table.removeAt(slot);
+            }
+        }
+    }
+
+    private void checkGrowth() {
+        if (table.capacity() != capacity) {
+            capacity = table.capacity();
+            log.warn("Rolling usage window grew to {} slots for {} devices; raise usage.aggregation.expected-devices "
+                    + "so it is sized up front", capacity, table.size());
+        }
+    }
+
+    /** Drops devices whose newest reading is older than both the window and the long window. */
+    private void expire(long nowBucket, long nowDay) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            // Removal shifts the next entry into this slot, so look at it again
+            while (table.isOccupied(slot) && table.getInt(BUCKET, slot) <= nowBucket - bucketCount
+                    && table.getInt(DAY, slot) <= nowDay - dayCount) {
+                table.removeAt(slot);
+            }
+        }
+    }
+
+    private int deviceCount() {
+        synchronized (table) {
+            return table.size();
+        }
+    }
+
+    /*
+     * A ring is an int column with the index of the open bucket, a float column with its
+     * sum, and ringSize short columns from ringOffset holding closed buckets at
+     * (index mod ringSize), each worth value * 2^exponent with the exponent in its own short
+     * column. The open bucket's own ring position is kept at zero. Only readings move the
+     * open index forward; reads work out which buckets have expired without writing.
+     */
+
+    private void add(int slot, int indexColumn, int sumColumn, int exponentColumn, int ringOffset, int ringSize,
+                     long index, double value) {
+        advance(slot, indexColumn, sumColumn, exponentColumn, ringOffset, ringSize, index);
+        final int open = table.getInt(indexColumn, slot);
+        if (index == open) {
+            table.setFloat(sumColumn, slot, table.getFloat(sumColumn, slot) + (float) value);
+        } else if (index > open - ringSize) {
+            final int column = ringOffset + (int) Math.floorMod(index, (long) ringSize);
+            store(slot, exponentColumn, ringOffset, ringSize, column, closed(slot, exponentColumn, column) + value);
+        }
+        // else older than the ring
+    }
+
+    private void advance(int slot, int indexColumn, int sumColumn, int exponentColumn, int ringOffset, int ringSize,
+                         long index) {
+        final int open = table.getInt(indexColumn, slot);
+        if (index <= open) {
+            return;
+        }
+        if (index - open >= ringSize) {
+            for (int i = 0; i < ringSize; i++) {
+                table.setShort(ringOffset + i, slot, (short) 0);
+            }
+        } else {
+            for (long b = open + 1; b <= index; b++) {
+                table.setShort(ringOffset + (int) Math.floorMod(b, (long) ringSize), slot, (short) 0);
+            }
+            store(slot, exponentColumn, ringOffset, ringSize, ringOffset + (int) Math.floorMod(open, (long) ringSize),
+                    table.getFloat(sumColumn, slot));
+        }
+        table.setFloat(sumColumn, slot, 0f);
+        table.setInt(indexColumn, slot, (int) index);
+    }
+
+    private double closed(int slot, int exponentColumn, int column) {
+        return Math.scalb((double) table.getShort(column, slot), table.getShort(exponentColumn, slot));
+    }
+
+    /**
+     * Sets a closed bucket to {@code value}, first moving the ring to the smallest exponent
+     * that fits its largest value. A finer exponent shifts the other buckets exactly; only a
+     * coarser one rounds them.
+     */
+    private void store(int slot, int exponentColumn, int ringOffset, int ringSize, int column, double value) {
+        final int exponent = table.getShort(exponentColumn, slot);
+        double largest = Math.abs(value);
+        for (int i = 0; i < ringSize; i++) {
+            if (ringOffset + i != column) {
+                largest = Math.max(largest, Math.abs(Math.scalb((double) table.getShort(ringOffset + i, slot), exponent)));
+            }
+        }
+        int scaled = largest == 0 ? exponent : Math.max(MIN_EXPONENT, Math.getExponent(largest) - 14);
+        while (Math.rint(Math.scalb(largest, -scaled)) > Short.MAX_VALUE) {
+            scaled++;
+        }
+        if (scaled != exponent) {
+            for (int i = 0; i < ringSize; i++) {
+                final double rescaled = Math.rint(Math.scalb((double) table.getShort(ringOffset + i, slot), exponent - scaled));
+                table.setShort(ringOffset + i, slot, (short) rescaled);
+            }
+            table.setShort(exponentColumn, slot, (short) scaled);
+        }
+        table.setShort(column, slot, (short) Math.rint(Math.scalb(value, -scaled)));
+    }
+
+    /** Sum of the newest {@code count} buckets up to {@code now}, the open one included. */
+    private double sumLast(int slot, int indexColumn, int sumColumn, int exponentColumn, int ringOffset, int ringSize,
+                           long now, int count) {
+        final int open = table.getInt(indexColumn, slot);
+        double sum = 0;
+        long closedSum = 0;
+        // Buckets after the open one are empty, and those ringSize or more before it have expired
+        for (long b = Math.max(now - count + 1, (long) open - ringSize + 1); b <= Math.min(now, open); b++) {
+            if (b == open) {
+                sum += table.getFloat(sumColumn, slot);
+            } else {
+                closedSum += table.getShort(ringOffset + (int) Math.floorMod(b, (long) ringSize), slot);
+            }
+        }
+        sum += Math.scalb((double) closedSum, table.getShort(exponentColumn, slot));
+        return Math.max(sum, 0.0);
+    }
+
+    // Readings stamped in the future are counted in the current bucket
+    private long recentBucket(long epochMillis) {
+        return Math.min(epochMillis / bucketMillis, currentBucket());
+    }
+
+    private long dayBucket(long epochMillis) {
+        return Math.min(epochMillis / DAY_MILLIS, currentDay());
+    }
+
+    private long currentBucket() {
+        return System.currentTimeMillis() / bucketMillis;
+    }
+
+    private long currentDay() {
+        return System.currentTimeMillis() / DAY_MILLIS;
+    }
+
+    /** Stop time of a partition's last rebuild, and when that rebuild finished, epoch millis. */
+    private record Rebuilt(long stop, long finishedAt) {}
+}
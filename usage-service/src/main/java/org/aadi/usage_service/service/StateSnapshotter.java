@@ -0,0 +1,141 @@
+package org.aadi.usage_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Snapshots the in-memory aggregation state (rolling window and anomaly baselines) to
+ * local files, each tagged with the energy-usage offsets it covers.
+ * <p>
+ * On startup the snapshots are restored before the Kafka listeners start; the listeners
+ * then seek to the restored offsets and replay the gap, so a restart takes as long as
+ * reading the files plus the replay instead of a rebuild from InfluxDB. Snapshots are written every
+ * {@code usage.snapshot.interval} without holding up ingest (tables are copied on write
+ * while a snapshot is out), and on shutdown, after the listeners stopped.
+ * Files are replaced atomically; one older than {@code usage.snapshot.max-age} is ignored.
+ * Alert hysteresis state is persisted separately by {@link AlertStateMachine}.
+ */
+@Slf4j
+@Service
+public class StateSnapshotter implements SmartLifecycle {
+
+    private final RollingUsageAggregator rollingUsageAggregator;
+    private final AnomalyDetector anomalyDetector;
+    private final boolean enabled;
+    private final Path windowFile;
+    private final Path anomalyFile;
+    private final Duration maxAge;
+    private volatile boolean running;
+
+    public StateSnapshotter(RollingUsageAggregator rollingUsageAggregator,
+                            AnomalyDetector anomalyDetector,
+                            @Value("${usage.snapshot.enabled:true}") boolean enabled,
+                            @Value("${usage.state.dir:./state}") Path stateDir,
+                            @Value("${usage.snapshot.max-age:6h}") Duration maxAge) {
+        this.rollingUsageAggregator = rollingUsageAggregator;
+        this.anomalyDetector = anomalyDetector;
+        this.enabled = enabled;
+        this.windowFile = stateDir.resolve("usage-window.snapshot");
+        this.anomalyFile = stateDir.resolve("anomaly-baselines.snapshot");
+        this.maxAge = maxAge;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        if (!enabled) {
+            return;
+        }
+        restore(windowFile, channel -> rollingUsageAggregator.readSnapshot(channel, maxAge));
+        if (anomalyDetector.isEnabled()) {
+            restore(anomalyFile, channel -> anomalyDetector.readSnapshot(channel, maxAge));
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (running) {
+            snapshot();
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Restores ahead of the listener containers, and so stops after them.
+     */
+    @Override
+    public int getPhase() {
+        return -1;
+    }
+
+    @Scheduled(fixedDelayString = "${usage.snapshot.interval:1m}", initialDelayString = "${usage.snapshot.interval:1m}")
+    public synchronized void snapshot() {
+        if (!enabled || !running) {
+            return;
+        }
+        // Only offsets of warm partitions are written, so cold ones are rebuilt after a restore
+        if (rollingUsageAggregator.isWarm()) {
+            write(windowFile, rollingUsageAggregator::writeSnapshot);
+        }
+        if (anomalyDetector.isEnabled()) {
+            write(anomalyFile, anomalyDetector::writeSnapshot);
+        }
+    }
+
+    private void restore(Path file, SnapshotReader reader) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        final long startedAt = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (reader.read(channel)) {
+                log.info("Restored {} in {} ms", file, System.currentTimeMillis() - startedAt);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not restore {}, starting without it: {}", file, e.getMessage());
+        }
+    }
+
+    private void write(Path file, SnapshotWriter writer) {
+        final long startedAt = System.currentTimeMillis();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote {} in {} ms", file, System.currentTimeMillis() - startedAt);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to write snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface SnapshotReader {
+        boolean read(FileChannel channel) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface SnapshotWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+}
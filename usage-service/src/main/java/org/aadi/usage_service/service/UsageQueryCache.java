@@ -0,0 +1,72 @@
+package org.aadi.usage_service.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.aadi.usage_service.dto.UsageDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches per-user usage results for each requested {@code days} window.
+ * <p>
+ * Entries are per user, and the {@code energy-usage} listener drops a user's entry whenever
+ * it writes points for one of the user's devices. A result is only stored if the entry it
+ * was loaded against is still current, so events landing mid-query keep the stale result
+ * out. Entries are bounded by {@code usage.query-cache.max-size} users and live at most
+ * {@code usage.query-cache.ttl}, since the window slides with time and other replicas may
+ * have ingested for the user.
+ */
+@Service
+public class UsageQueryCache {
+
+    private final Cache<Long, UserEntry> entries;
+
+    public UsageQueryCache(MeterRegistry meterRegistry,
+                           @Value("${usage.query-cache.max-size:10000}") long maxSize,
+                           @Value("${usage.query-cache.ttl:1m}") Duration ttl) {
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "user-usage");
+    }
+
+    /**
+     * Returns the cached result for the user's current entry, computing it on a miss.
+     * Results without devices (no devices, or the query failed) are not cached.
+     */
+    public UsageDto get(Long userId, int days, Supplier<UsageDto> loader) {
+        // Take the entry before loading so events landing mid-query invalidate the result
+        final UserEntry entry = entries.get(userId, id -> new UserEntry());
+        final UsageDto cached = entry.results.get(days);
+        if (cached != null) {
+            return cached;
+        }
+        final UsageDto loaded = loader.get();
+        if (loaded != null && loaded.devices() != null && entries.getIfPresent(userId) == entry) {
+            // If the entry is dropped after this check the result lands in an unreachable entry
+            entry.results.put(days, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Marks new usage for the given users, invalidating every cached window they have.
+     */
+    public void markIngested(Collection<Long> userIds) {
+        entries.invalidateAll(userIds);
+    }
+
+    private static final class UserEntry {
+        private final Map<Integer, UsageDto> results = new ConcurrentHashMap<>();
+    }
+}
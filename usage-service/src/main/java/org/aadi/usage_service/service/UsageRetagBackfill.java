@@ -0,0 +1,260 @@
+package org.aadi.usage_service.service;
+
+import com.influxdb.Cancellable;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.write.Point;
+import com.influxdb.query.FluxRecord;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.dto.DeviceDto;
+import org.aadi.usage_service.util.FluxQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Re-tags {@code energy_usage} points written without userId/type/location tags: points
+ * from before they carried them, and readings of devices device-service did not know yet
+ * when they were stored. It walks the range one day at a time: untagged points are
+ * rewritten with the tags of their device, then the untagged series of every device that
+ * could be resolved is deleted, together with its rollups, and the rollups are recomputed
+ * from that day. Devices unknown to device-service are left untouched.
+ * <p>
+ * The replica that writes rollups runs it over the past {@code usage.retag.lookback-days}
+ * every {@code usage.retag.interval}; older ranges can be started by hand. Between the
+ * rewrite and the delete of a day both copies exist, so device totals over that day
+ * briefly double count (per-user totals only read the tagged copy).
+ */
+@Slf4j
+@Service
+public class UsageRetagBackfill {
+
+    private final InfluxDBClient influxDBClient;
+    private final DeviceRegistry deviceRegistry;
+    private final EnergyUsageWriter energyUsageWriter;
+    private final UsageRollupService usageRollupService;
+    private final AlertPartitioner alertPartitioner;
+    private final String influxBucket;
+    private final String influxOrg;
+    private final int flushSize;
+    private final int lookbackDays;
+    private final Duration dayTimeout;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "usage-retag-backfill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public UsageRetagBackfill(InfluxDBClient influxDBClient,
+                              DeviceRegistry deviceRegistry,
+                              EnergyUsageWriter energyUsageWriter,
+                              UsageRollupService usageRollupService,
+                              AlertPartitioner alertPartitioner,
+                              @Value("${influx.bucket}") String influxBucket,
+                              @Value("${influx.org}") String influxOrg,
+                              @Value("${usage.influx.write.chunk-size:1000}") int flushSize,
+                              @Value("${usage.retag.lookback-days:1}") int lookbackDays,
+                              @Value("${usage.retag.day-timeout:10m}") Duration dayTimeout) {
+        this.influxDBClient = influxDBClient;
+        this.deviceRegistry = deviceRegistry;
+        this.energyUsageWriter = energyUsageWriter;
+        this.usageRollupService = usageRollupService;
+        this.alertPartitioner = alertPartitioner;
+        this.influxBucket = influxBucket;
+        this.influxOrg = influxOrg;
+        this.flushSize = flushSize;
+        this.lookbackDays = lookbackDays;
+        this.dayTimeout = dayTimeout;
+    }
+
+    @Scheduled(fixedDelayString = "${usage.retag.interval:1h}", initialDelayString = "${usage.retag.initial-delay:5m}")
+    public void retagRecent() {
+        if (start(lookbackDays)) {
+            log.debug("Scheduled tag backfill started for the past {} days", lookbackDays);
+        }
+    }
+
+    /**
+     * Starts the backfill over the past {@code days} days in the background. Returns false
+     * if a backfill is already running or this replica does not write rollups, which the
+     * backfill has to recompute.
+     */
+    public boolean start(int days) {
+        if (!alertPartitioner.ownsPartition(0) || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.submit(() -> {
+            try {
+                run(days);
+            } catch (Exception e) {
+                log.error("Usage retag backfill failed: {}", e.getMessage(), e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void run(int days) throws InterruptedException {
+        final Instant end = Instant.now();
+        Instant dayStart = end.truncatedTo(ChronoUnit.DAYS).minus(days, ChronoUnit.DAYS);
+        log.info("Starting usage retag backfill from {} to {}", dayStart, end);
+        long total = 0;
+        while (dayStart.isBefore(end)) {
+            final Instant dayEnd = dayStart.plus(1, ChronoUnit.DAYS).isAfter(end) ? end : dayStart.plus(1, ChronoUnit.DAYS);
+            total += retagRange(dayStart, dayEnd);
+            dayStart = dayEnd;
+        }
+        log.info("Usage retag backfill finished, rewrote {} points", total);
+    }
+
+    private long retagRange(Instant start, Instant stop) throws InterruptedException {
+        final String fluxQuery = FluxQuery.of("""
+        from(bucket: params.bucket)
+          |> range(start: params.start, stop: params.stop)
+          |> filter(fn: (r) => r["_measurement"] == "energy_usage")
+          |> filter(fn: (r) => r["_field"] == "energyConsumed")
+          |> filter(fn: (r) => exists(r["deviceId"]) and not exists(r["userId"]))
+        """)
+                .bind("bucket", influxBucket)
+                .bind("start", start)
+                .bind("stop", stop)
+                .build();
+
+        final List<Reading> buffer = new ArrayList<>(flushSize);
+        final Set<Long> retaggedDevices = new HashSet<>();
+        final long[] rewritten = {0};
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Cancellable> query = new AtomicReference<>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+
+        // Records arrive on the HTTP client's thread; writing from it throttles the stream
+        influxDBClient.getQueryApi().query(fluxQuery, influxOrg,
+                (cancellable, record) -> {
+                    query.compareAndSet(null, cancellable);
+                    if (abandoned.get()) {
+                        cancellable.cancel();
+                        return;
+                    }
+                    final Reading reading = Reading.of(record);
+                    if (reading == null) {
+                        return;
+                    }
+                    buffer.add(reading);
+                    if (buffer.size() >= flushSize) {
+                        rewritten[0] += retag(buffer, retaggedDevices);
+                        buffer.clear();
+                    }
+                },
+                error -> {
+                    failure.set(error);
+                    done.countDown();
+                },
+                done::countDown);
+        boolean completed = false;
+        try {
+            completed = done.await(dayTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!completed) {
+                abandon(query, abandoned);
+            }
+        }
+        if (!completed) {
+            throw new IllegalStateException("Retag of " + start + " - " + stop + " timed out after " + dayTimeout);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Retag query failed for " + start + " - " + stop, failure.get());
+        }
+        rewritten[0] += retag(buffer, retaggedDevices);
+
+        // Drop the untagged copies only for devices that now have a tagged series
+        for (Long deviceId : retaggedDevices) {
+            influxDBClient.getDeleteApi().delete(
+                    start.atOffset(ZoneOffset.UTC),
+                    stop.atOffset(ZoneOffset.UTC),
+                    String.format("_measurement=\"energy_usage\" AND deviceId=\"%d\" AND userId=\"\"", deviceId),
+                    influxBucket, influxOrg);
+        }
+        if (!retaggedDevices.isEmpty() && !usageRollupService.replaceUntagged(retaggedDevices, start, stop)) {
+            log.warn("Rollups between {} and {} were not recomputed: this instance no longer writes them",
+                    start, stop);
+        }
+        log.info("Retagged {} points for {} devices between {} and {}",
+                rewritten[0], retaggedDevices.size(), start, stop);
+        return rewritten[0];
+    }
+
+    /**
+     * Rewrites {@code readings} with the tags of their devices, resolved with one bulk lookup,
+     * and returns how many were written.
+     */
+    private int retag(List<Reading> readings, Set<Long> retaggedDevices) {
+        final Set<Long> deviceIds = new HashSet<>();
+        for (Reading reading : readings) {
+            deviceIds.add(reading.deviceId());
+        }
+        final Map<Long, DeviceDto> knownDevices = deviceRegistry.getDevices(deviceIds);
+        final List<Point> points = new ArrayList<>(readings.size());
+        for (Reading reading : readings) {
+            final DeviceDto device = knownDevices.get(reading.deviceId());
+            if (device == null || device.userId() == null) {
+                continue;
+            }
+            retaggedDevices.add(reading.deviceId());
+            points.add(energyUsageWriter.toPoint(reading.deviceId(), reading.value(), reading.time(), device));
+        }
+        energyUsageWriter.write(points);
+        return points.size();
+    }
+
+    /**
+     * Stops a query the backfill has stopped waiting for, so it writes nothing more.
+     */
+    private static void abandon(AtomicReference<Cancellable> query, AtomicBoolean abandoned) {
+        abandoned.set(true);
+        final Cancellable cancellable = query.get();
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+    }
+
+    private record Reading(Long deviceId, double value, Instant time) {
+
+        static Reading of(FluxRecord record) {
+            final Object deviceIdObj = record.getValueByKey("deviceId");
+            final Instant time = record.getTime();
+            if (deviceIdObj == null || time == null || !(record.getValue() instanceof Number value)) {
+                return null;
+            }
+            try {
+                return new Reading(Long.valueOf(deviceIdObj.toString()), value.doubleValue(), time);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,502 @@
+package org.aadi.usage_service.service;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.domain.Bucket;
+import com.influxdb.client.domain.BucketRetentionRules;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.model.RollupSegment;
+import org.aadi.usage_service.util.FluxQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Maintains per-device energy sums at minute, hour and day resolution in the
+ * {@code energy_usage_1m}, {@code energy_usage_1h} and {@code energy_usage_1d} measurements.
+ * Each level is rolled up server-side from the one below it, so every series keeps its
+ * deviceId/userId/type/location tags.
+ * <p>
+ * Each level covers a range from its oldest rollup up to a watermark: the time up to which
+ * it is complete. {@link #plan} uses these ranges to split a query so the bulk of it is read
+ * from the coarsest complete level and only the edges fall through to finer levels and raw
+ * points.
+ * <p>
+ * Rollups are written by one replica only, the owner of partition 0 of
+ * {@code energy-usage-by-user}, and the minute level never runs ahead of the
+ * {@link IngestWatermark}: a reading still waiting in Kafka must not land behind a minute
+ * that was already rolled up. After every advance the writer stores each level's coverage
+ * in {@code usage_rollup_state}, which the other replicas and later startups read instead
+ * of scanning the rollups for their oldest and newest points.
+ */
+@Slf4j
+@Service
+public class UsageRollupService {
+
+    private static final String RAW_MEASUREMENT = "energy_usage";
+    private static final String STATE_MEASUREMENT = "usage_rollup_state";
+
+    private final InfluxDBClient influxDBClient;
+    private final IngestWatermark ingestWatermark;
+    private final AlertPartitioner alertPartitioner;
+    private final String rawBucket;
+    private final String rollupBucket;
+    private final String influxOrg;
+    private final Duration lateness;
+    private final Duration initialLookback;
+    private final boolean enabled;
+
+    /** Finest first; each level is built from the previous one (raw for the first). */
+    private final List<Level> levels = List.of(
+            new Level("energy_usage_1m", Duration.ofMinutes(1)),
+            new Level("energy_usage_1h", Duration.ofHours(1)),
+            new Level("energy_usage_1d", Duration.ofDays(1)));
+
+    /** Earliest time a {@link #recompute} asked for that has not been rolled up again yet. */
+    private final AtomicReference<Recompute> recompute = new AtomicReference<>();
+
+    /** How far back rollups can exist: the rollup bucket's retention, looked up once. */
+    private volatile Duration searchWindow;
+    /** Whether {@link #searchWindow} is a finite retention, i.e. older rollups have expired. */
+    private volatile boolean expiring;
+
+    public UsageRollupService(InfluxDBClient influxDBClient,
+                              IngestWatermark ingestWatermark,
+                              AlertPartitioner alertPartitioner,
+                              @Value("${influx.bucket}") String rawBucket,
+                              @Value("${usage.rollup.bucket:${influx.bucket}}") String rollupBucket,
+                              @Value("${influx.org}") String influxOrg,
+                              @Value("${usage.rollup.lateness:5m}") Duration lateness,
+                              @Value("${usage.rollup.initial-lookback:7d}") Duration initialLookback,
+                              @Value("${usage.rollup.enabled:true}") boolean enabled) {
+        this.influxDBClient = influxDBClient;
+        this.ingestWatermark = ingestWatermark;
+        this.alertPartitioner = alertPartitioner;
+        this.rawBucket = rawBucket;
+        this.rollupBucket = rollupBucket;
+        this.influxOrg = influxOrg;
+        this.lateness = lateness;
+        this.initialLookback = initialLookback;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Rolls each level forward. Every run recomputes a little behind the watermark
+     * ({@code usage.rollup.lateness} for minutes, one unit for hours and days) so late
+     * points are folded in; rewriting a rollup point simply overwrites it. A pending
+     * {@link #recompute} moves the start of every level back to the requested time.
+     */
+    @Scheduled(fixedDelayString = "${usage.rollup.interval:1m}", initialDelayString = "${usage.rollup.initial-delay:30s}")
+    public void rollUp() {
+        if (!enabled || rawBucket == null || influxOrg == null) {
+            return;
+        }
+        if (!alertPartitioner.ownsPartition(0)) {
+            refreshCoverage();
+            return;
+        }
+        final Instant ingested;
+        try {
+            ingested = ingestWatermark.current();
+        } catch (Exception e) {
+            log.warn("Could not read the ingest watermark, skipping rollup: {}", e.getMessage());
+            return;
+        }
+        final Recompute pending = recompute.get();
+        String sourceBucket = rawBucket;
+        String sourceMeasurement = RAW_MEASUREMENT;
+        // Minutes may only be rolled once late raw points had a chance to arrive
+        Instant sourceWatermark = min(Instant.now(), ingested).minus(lateness);
+
+        for (Level level : levels) {
+            try {
+                if (level.watermark == null) {
+                    resolveCoverage(level);
+                }
+                final Duration rewind = level == levels.get(0) ? lateness : level.unit;
+                Instant from = floor(level.watermark.minus(rewind), level.unit);
+                if (pending != null) {
+                    from = min(from, max(floor(pending.from(), level.unit), level.from));
+                }
+                final Instant to = floor(sourceWatermark, level.unit);
+                if (to.isAfter(from)) {
+                    rollUpRange(sourceBucket, sourceMeasurement, level, from, to);
+                    if (to.isAfter(level.watermark)) {
+                        level.watermark = to;
+                        writeCoverage(level);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Rollup to {} failed, will retry next run: {}", level.measurement, e.getMessage());
+                return;
+            }
+            sourceBucket = rollupBucket;
+            sourceMeasurement = level.measurement;
+            sourceWatermark = level.watermark;
+        }
+        // A request that came in during the run replaced pending and is kept for the next one
+        if (pending != null && recompute.compareAndSet(pending, null)) {
+            log.info("Recomputed rollups from {}", pending.from());
+        }
+    }
+
+    /**
+     * Has the next {@link #rollUp()} rebuild every level from {@code from} (clamped to what
+     * the level covers) up to its watermark, e.g. after raw points in that range were
+     * rewritten. Requests made before a run completes are merged into the earliest one.
+     * Returns false when this replica does not write rollups.
+     */
+    public boolean recompute(Instant from) {
+        if (!enabled || !alertPartitioner.ownsPartition(0)) {
+            return false;
+        }
+        recompute.accumulateAndGet(new Recompute(from),
+                (current, requested) -> current == null ? requested : new Recompute(min(current.from(), requested.from())));
+        log.info("Rollup recompute requested from {}", from);
+        return true;
+    }
+
+    /**
+     * Deletes the rollups of the untagged series of {@code deviceIds} in {@code [from, to)}
+     * and has the next run rebuild every level from {@code from}, for when the raw points
+     * behind them were rewritten with tags. Returns false, deleting nothing, when this
+     * replica does not write rollups.
+     */
+    public boolean replaceUntagged(Collection<Long> deviceIds, Instant from, Instant to) {
+        if (!recompute(from)) {
+            return false;
+        }
+        for (Level level : levels) {
+            // Rollup points are stamped with their window start, so include the unit from starts in
+            final OffsetDateTime start = floor(from, level.unit).atOffset(ZoneOffset.UTC);
+            for (Long deviceId : deviceIds) {
+                influxDBClient.getDeleteApi().delete(start, to.atOffset(ZoneOffset.UTC),
+                        String.format("_measurement=\"%s\" AND deviceId=\"%d\" AND userId=\"\"", level.measurement, deviceId),
+                        rollupBucket, influxOrg);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the watermark of every level that does not have one yet, so queries can be
+     * planned against the rollups before the first scheduled run. Levels whose lookup fails
+     * are left for {@link #rollUp()}.
+     */
+    public void resolveWatermarks() {
+        if (!enabled || rawBucket == null || influxOrg == null) {
+            return;
+        }
+        for (Level level : levels) {
+            if (level.watermark != null) {
+                continue;
+            }
+            try {
+                resolveCoverage(level);
+            } catch (Exception e) {
+                log.warn("Could not resolve rollup watermark for {}: {}", level.measurement, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Splits {@code [start, stop)} into segments that together cover it exactly: whole
+     * days from the daily rollup, then whole hours and minutes around them, and raw points
+     * for whatever is left at the edges or beyond the minute watermark.
+     */
+    public List<RollupSegment> plan(Instant start, Instant stop) {
+        return plan(start, stop, levels.get(levels.size() - 1).unit);
+    }
+
+    /**
+     * Like {@link #plan(Instant, Instant)}, but only uses levels no coarser than
+     * {@code maxUnit}, for callers that re-window the rows at that resolution.
+     */
+    public List<RollupSegment> plan(Instant start, Instant stop, Duration maxUnit) {
+        int levelIndex = levels.size() - 1;
+        while (levelIndex >= 0 && levels.get(levelIndex).unit.compareTo(maxUnit) > 0) {
+            levelIndex--;
+        }
+        final List<RollupSegment> segments = new ArrayList<>();
+        cover(start, stop, levelIndex, segments);
+        return segments;
+    }
+
+    /**
+     * Flux query source yielding every {@code energyConsumed} row of the planned segments for
+     * {@code [start, stop)}, with {@code filter} (a Flux predicate on {@code r}, which may
+     * reference parameters the caller binds) applied to each segment.
+     */
+    public FluxQuery usageSource(Instant start, Instant stop, String filter) {
+        return usageSource(start, stop, filter, levels.get(levels.size() - 1).unit);
+    }
+
+    /**
+     * Like {@link #usageSource(Instant, Instant, String)}, reading only levels no coarser
+     * than {@code maxUnit}.
+     */
+    public FluxQuery usageSource(Instant start, Instant stop, String filter, Duration maxUnit) {
+        final List<RollupSegment> segments = plan(start, stop, maxUnit);
+        final FluxQuery query = FluxQuery.of(segments.size() == 1 ? "" : "union(tables: [\n");
+        for (int i = 0; i < segments.size(); i++) {
+            final RollupSegment segment = segments.get(i);
+            final String prefix = "params.segment" + i + "_";
+            query.append(i == 0 ? "" : ",\n")
+                    .append("from(bucket: " + prefix + "bucket)\n"
+                            + "  |> range(start: " + prefix + "start, stop: " + prefix + "stop)\n"
+                            + "  |> filter(fn: (r) => r[\"_measurement\"] == " + prefix + "measurement"
+                            + " and r[\"_field\"] == \"energyConsumed\")\n"
+                            + "  |> filter(fn: (r) => " + filter + ")")
+                    .bind("segment" + i + "_bucket", segment.bucket())
+                    .bind("segment" + i + "_start", segment.start())
+                    .bind("segment" + i + "_stop", segment.stop())
+                    .bind("segment" + i + "_measurement", segment.measurement());
+        }
+        return query.append(segments.size() == 1 ? "\n" : "\n])\n");
+    }
+
+    private void cover(Instant start, Instant stop, int levelIndex, List<RollupSegment> segments) {
+        if (!start.isBefore(stop)) {
+            return;
+        }
+        if (levelIndex < 0) {
+            segments.add(new RollupSegment(rawBucket, RAW_MEASUREMENT, start, stop));
+            return;
+        }
+        final Level level = levels.get(levelIndex);
+        final Instant watermark = level.watermark;
+        if (!enabled || watermark == null) {
+            cover(start, stop, levelIndex - 1, segments);
+            return;
+        }
+        final Instant alignedStart = ceil(max(start, level.from), level.unit);
+        final Instant alignedStop = min(floor(stop, level.unit), watermark);
+        if (!alignedStart.isBefore(alignedStop)) {
+            cover(start, stop, levelIndex - 1, segments);
+            return;
+        }
+        cover(start, alignedStart, levelIndex - 1, segments);
+        segments.add(new RollupSegment(rollupBucket, level.measurement, alignedStart, alignedStop));
+        cover(alignedStop, stop, levelIndex - 1, segments);
+    }
+
+    private void rollUpRange(String sourceBucket, String sourceMeasurement, Level level, Instant from, Instant to) {
+        final String fluxQuery = FluxQuery.of("""
+        from(bucket: params.sourceBucket)
+          |> range(start: params.from, stop: params.to)
+          |> filter(fn: (r) => r["_measurement"] == params.sourceMeasurement)
+          |> filter(fn: (r) => r["_field"] == "energyConsumed")
+          |> aggregateWindow(every: params.every, fn: sum, timeSrc: "_start", createEmpty: false)
+          |> set(key: "_measurement", value: params.measurement)
+          |> to(bucket: params.rollupBucket, org: params.org)
+          |> group()
+          |> count(column: "_value")
+        """)
+                .bind("sourceBucket", sourceBucket)
+                .bind("from", from)
+                .bind("to", to)
+                .bind("sourceMeasurement", sourceMeasurement)
+                .bind("every", level.unit)
+                .bind("measurement", level.measurement)
+                .bind("rollupBucket", rollupBucket)
+                .bind("org", influxOrg)
+                .build();
+
+        long rows = 0;
+        for (FluxTable table : influxDBClient.getQueryApi().query(fluxQuery, influxOrg)) {
+            for (FluxRecord record : table.getRecords()) {
+                if (record.getValue() instanceof Number count) {
+                    rows += count.longValue();
+                }
+            }
+        }
+        log.debug("Rolled {} rows into {} for {} - {}", rows, level.measurement, from, to);
+    }
+
+    /**
+     * Picks up the coverage the writing replica last stored, so queries here plan against
+     * the rollups as they advance. Levels without stored coverage keep what they have.
+     */
+    private void refreshCoverage() {
+        for (Level level : levels) {
+            try {
+                readCoverage(level);
+            } catch (Exception e) {
+                log.debug("Could not refresh rollup coverage for {}: {}", level.measurement, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds what the level already covers: the stored coverage if there is one, otherwise
+     * from its oldest point up to the end of its newest one. An empty level starts covering
+     * at {@code initial-lookback} ago, rounded up to a whole day so every level starts at the
+     * same instant and none claims a partially rolled first unit.
+     */
+    private void resolveCoverage(Level level) {
+        if (readCoverage(level)) {
+            log.info("Rollup {} covers {} - {}", level.measurement, level.from, level.watermark);
+            return;
+        }
+        final Instant oldest = boundaryTime(level, "min");
+        final Instant newest = boundaryTime(level, "max");
+        if (newest == null) {
+            final Instant start = ceil(Instant.now().minus(initialLookback), Duration.ofDays(1));
+            level.from = start;
+            level.watermark = start;
+        } else {
+            // Rollup points are stamped with their window start, so the level is complete up to start + unit
+            level.from = oldest;
+            level.watermark = newest.plus(level.unit);
+        }
+        log.info("Rollup {} covers {} - {}", level.measurement, level.from, level.watermark);
+    }
+
+    private boolean readCoverage(Level level) {
+        final String fluxQuery = FluxQuery.of("""
+        from(bucket: params.bucket)
+          |> range(start: params.start)
+          |> filter(fn: (r) => r["_measurement"] == params.stateMeasurement and r["level"] == params.level)
+          |> last()
+        """)
+                .bind("bucket", rollupBucket)
+                .bind("start", Instant.now().minus(searchWindow()))
+                .bind("stateMeasurement", STATE_MEASUREMENT)
+                .bind("level", level.measurement)
+                .build();
+
+        Instant from = null;
+        Instant watermark = null;
+        for (FluxTable table : influxDBClient.getQueryApi().query(fluxQuery, influxOrg)) {
+            for (FluxRecord record : table.getRecords()) {
+                if (record.getValue() instanceof Number millis) {
+                    if ("from".equals(record.getField())) {
+                        from = Instant.ofEpochMilli(millis.longValue());
+                    } else if ("watermark".equals(record.getField())) {
+                        watermark = Instant.ofEpochMilli(millis.longValue());
+                    }
+                }
+            }
+        }
+        if (from == null || watermark == null) {
+            return false;
+        }
+        if (expiring) {
+            // Rollups past the retention are gone even if the raw points they came from are not
+            from = max(from, ceil(Instant.now().minus(searchWindow), Duration.ofDays(1)));
+        }
+        level.from = from;
+        level.watermark = max(from, watermark);
+        return true;
+    }
+
+    private void writeCoverage(Level level) {
+        final Point point = Point.measurement(STATE_MEASUREMENT)
+                .addTag("level", level.measurement)
+                .addField("from", level.from.toEpochMilli())
+                .addField("watermark", level.watermark.toEpochMilli())
+                .time(Instant.now(), WritePrecision.MS);
+        influxDBClient.getWriteApiBlocking().writePoint(rollupBucket, influxOrg, point);
+    }
+
+    private Instant boundaryTime(Level level, String selector) {
+        final String fluxQuery = FluxQuery.of("""
+        from(bucket: params.bucket)
+          |> range(start: params.start)
+          |> filter(fn: (r) => r["_measurement"] == params.measurement)
+          |> keep(columns: ["_time"])
+          |> group()
+        """)
+                .append("  |> " + selector + "(column: \"_time\")\n")
+                .bind("bucket", rollupBucket)
+                .bind("start", Instant.now().minus(searchWindow()))
+                .bind("measurement", level.measurement)
+                .build();
+
+        Instant boundary = null;
+        for (FluxTable table : influxDBClient.getQueryApi().query(fluxQuery, influxOrg)) {
+            for (FluxRecord record : table.getRecords()) {
+                if (record.getTime() != null) {
+                    boundary = record.getTime();
+                }
+            }
+        }
+        return boundary;
+    }
+
+    /**
+     * Nothing older than the rollup bucket's retention can exist, so lookups need not read
+     * further back. Falls back to {@code initial-lookback} for a bucket that keeps data
+     * forever or when the bucket cannot be looked up.
+     */
+    private Duration searchWindow() {
+        Duration window = searchWindow;
+        if (window != null) {
+            return window;
+        }
+        window = initialLookback;
+        try {
+            final Bucket bucket = influxDBClient.getBucketsApi().findBucketByName(rollupBucket);
+            if (bucket != null) {
+                for (BucketRetentionRules rule : bucket.getRetentionRules()) {
+                    if (rule.getEverySeconds() != null && rule.getEverySeconds() > 0) {
+                        window = Duration.ofSeconds(rule.getEverySeconds());
+                        expiring = true;
+                    }
+                }
+            }
+            searchWindow = window;
+        } catch (Exception e) {
+            log.warn("Could not read retention of bucket {}, searching the past {}: {}",
+                    rollupBucket, window, e.getMessage());
+        }
+        return window;
+    }
+
+    private static Instant floor(Instant instant, Duration unit) {
+        final long unitMillis = unit.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(instant.toEpochMilli(), unitMillis) * unitMillis);
+    }
+
+    private static Instant ceil(Instant instant, Duration unit) {
+        final Instant floor = floor(instant, unit);
+        return floor.equals(instant) ? floor : floor.plus(unit);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private record Recompute(Instant from) {
+    }
+
+    private static final class Level {
+        private final String measurement;
+        private final Duration unit;
+        /** Start of the range this level covers. */
+        private volatile Instant from;
+        /** End of the range this level covers, i.e. the time up to which it is complete. */
+        private volatile Instant watermark;
+
+        private Level(String measurement, Duration unit) {
+            this.measurement = measurement;
+            this.unit = unit;
+        }
+    }
+}
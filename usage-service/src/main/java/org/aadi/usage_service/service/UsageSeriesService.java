@@ -0,0 +1,197 @@
+package org.aadi.usage_service.service;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.dto.DeviceDto;
+import org.aadi.usage_service.dto.DeviceSeriesDto;
+import org.aadi.usage_service.dto.UsagePointDto;
+import org.aadi.usage_service.dto.UsageSeriesDto;
+import org.aadi.usage_service.util.Lttb;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-device usage series for charts. The range is summed server-side into the smallest
+ * window from a fixed ladder that yields at most {@code maxPoints * oversampling} points,
+ * reading whole units from the rollups, and each device's series is then reduced to
+ * {@code maxPoints} with LTTB. The payload is therefore bounded by {@code maxPoints} per
+ * device whatever the range.
+ */
+@Slf4j
+@Service
+public class UsageSeriesService {
+
+    private static final List<Duration> WINDOWS = List.of(
+            Duration.ofMinutes(1), Duration.ofMinutes(5), Duration.ofMinutes(15),
+            Duration.ofHours(1), Duration.ofHours(6), Duration.ofDays(1), Duration.ofDays(7));
+
+    private final InfluxDBClient influxDBClient;
+    private final UsageRollupService usageRollupService;
+    private final DeviceRegistry deviceRegistry;
+    private final String influxOrg;
+    private final int oversampling;
+    private final Duration queryTimeout;
+
+    public UsageSeriesService(InfluxDBClient influxDBClient,
+                              UsageRollupService usageRollupService,
+                              DeviceRegistry deviceRegistry,
+                              @Value("${influx.org}") String influxOrg,
+                              @Value("${usage.series.oversampling:4}") int oversampling,
+                              @Value("${usage.query.timeout:30s}") Duration queryTimeout) {
+        this.influxDBClient = influxDBClient;
+        this.usageRollupService = usageRollupService;
+        this.deviceRegistry = deviceRegistry;
+        this.influxOrg = influxOrg;
+        this.oversampling = oversampling;
+        this.queryTimeout = queryTimeout;
+    }
+
+    public UsageSeriesDto getSeries(Long userId, Instant from, Instant to, int maxPoints) {
+        final Duration window = chooseWindow(Duration.between(from, to), (long) maxPoints * oversampling);
+        log.info("Getting usage series for userId {} from {} to {} in {} windows", userId, from, to, window);
+
+        // Rollup levels coarser than the window would put a whole hour/day into one window
+        final String fluxQuery = usageRollupService.usageSource(from, to, "r[\"userId\"] == params.userId", window)
+                .append("""
+                  |> group(columns: ["deviceId"])
+                  |> aggregateWindow(every: params.window, fn: sum, timeSrc: "_start", createEmpty: false)
+                """)
+                .bind("userId", String.valueOf(userId))
+                .bind("window", window)
+                .build();
+
+        final Map<Long, SeriesBuffer> buffers = new HashMap<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        influxDBClient.getQueryApi().query(fluxQuery, influxOrg,
+                (cancellable, record) -> addRecord(record, buffers),
+                error -> {
+                    failure.set(error);
+                    done.countDown();
+                },
+                done::countDown);
+        try {
+            if (!done.await(queryTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Usage series query timed out after " + queryTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for usage series query", e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get().getMessage(), failure.get());
+        }
+
+        final Map<Long, String> deviceNames = new HashMap<>();
+        for (DeviceDto device : deviceRegistry.getDevicesForUser(userId)) {
+            if (device != null && device.id() != null) {
+                deviceNames.put(device.id(), device.name());
+            }
+        }
+
+        final List<DeviceSeriesDto> devices = new ArrayList<>(buffers.size());
+        buffers.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> devices.add(DeviceSeriesDto.builder()
+                        .deviceId(entry.getKey())
+                        .name(deviceNames.get(entry.getKey()))
+                        .points(entry.getValue().downsample(maxPoints))
+                        .build()));
+
+        return UsageSeriesDto.builder()
+                .userId(userId)
+                .from(from)
+                .to(to)
+                .window(window)
+                .devices(devices)
+                .build();
+    }
+
+    private static Duration chooseWindow(Duration range, long targetPoints) {
+        for (Duration window : WINDOWS) {
+            if (range.toMillis() / window.toMillis() <= targetPoints) {
+                return window;
+            }
+        }
+        return WINDOWS.get(WINDOWS.size() - 1);
+    }
+
+    private static void addRecord(FluxRecord record, Map<Long, SeriesBuffer> buffers) {
+        final Object deviceIdObj = record.getValueByKey("deviceId");
+        final Instant time = record.getTime();
+        if (deviceIdObj == null || time == null || !(record.getValue() instanceof Number value)) {
+            return;
+        }
+        try {
+            buffers.computeIfAbsent(Long.valueOf(deviceIdObj.toString()), id -> new SeriesBuffer())
+                    .add(time.toEpochMilli(), value.doubleValue());
+        } catch (NumberFormatException e) {
+            log.warn("Failed to parse deviceId from flux record: {}", deviceIdObj);
+        }
+    }
+
+    /**
+     * Growable primitive (time, value) arrays for one device's windows.
+     */
+    private static final class SeriesBuffer {
+        private long[] times = new long[64];
+        private double[] values = new double[64];
+        private int size;
+        private boolean sorted = true;
+
+        private void add(long time, double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size > 0 && time < times[size - 1]) {
+                sorted = false;
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        private List<UsagePointDto> downsample(int maxPoints) {
+            if (!sorted) {
+                sort();
+            }
+            final int[] keep = Lttb.downsample(times, values, size, maxPoints);
+            final List<UsagePointDto> points = new ArrayList<>(keep.length);
+            for (int index : keep) {
+                points.add(new UsagePointDto(Instant.ofEpochMilli(times[index]), values[index]));
+            }
+            return points;
+        }
+
+        private void sort() {
+            final Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+            final long[] sortedTimes = new long[size];
+            final double[] sortedValues = new double[size];
+            for (int i = 0; i < size; i++) {
+                sortedTimes[i] = times[order[i]];
+                sortedValues[i] = values[order[i]];
+            }
+            times = sortedTimes;
+            values = sortedValues;
+            sorted = true;
+        }
+    }
+}
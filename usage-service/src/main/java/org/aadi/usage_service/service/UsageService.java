@@ -1,44 +1,57 @@
 package org.aadi.usage_service.service;
 
+import com.influxdb.Cancellable;
 import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.QueryApi;
-import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
 import com.influxdb.query.FluxRecord;
-import com.influxdb.query.FluxTable;
 import org.aadi.kafka.event.AlertingEvent;
 import org.aadi.kafka.event.EnergyUsageEvent;
-import org.aadi.usage_service.client.DeviceClient;
-import org.aadi.usage_service.client.UserClient;
+import org.aadi.kafka.event.UserUsageEvent;
 import org.aadi.usage_service.dto.DeviceDto;
+import org.aadi.usage_service.dto.EnergyBudgetDto;
 import org.aadi.usage_service.dto.UsageDto;
-import org.aadi.usage_service.dto.UserDto;
+import org.aadi.usage_service.dto.UserAlertSettingsDto;
 import org.aadi.usage_service.model.Device;
+import org.aadi.usage_service.model.DeviceAnomaly;
 import org.aadi.usage_service.model.DeviceEnergy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerSeekAware;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import javax.annotation.Nullable;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Service
 @Slf4j
-public class UsageService {
+public class UsageService implements ConsumerSeekAware {
 
     private InfluxDBClient influxDBClient;
-    private DeviceClient deviceClient;
-    private UserClient userClient;
 
     @Value("${influx.bucket}")
     @Nullable
@@ -48,179 +61,353 @@ public class UsageService {
     @Nullable
     private String influxOrg;
 
+    @Value("${usage.aggregation.window:24h}")
+    private Duration aggregationWindow;
+
+    @Value("${usage.influx.write.retry-backoff:5s}")
+    private Duration writeRetryBackoff;
+
+    @Value("${usage.query.timeout:30s}")
+    private Duration queryTimeout;
+
+    @Value("${usage.batch.chunk-size:500}")
+    private int batchChunkSize;
+
+    @Value("${usage.alerting.full-sweep-interval:5m}")
+    private Duration fullSweepInterval;
+
+    private volatile long lastFullSweepAt;
+
+    // Held by an evaluation cycle, and while alert states move in or out with a rebalance
+    private final Object evaluationLock = new Object();
+
     private final KafkaTemplate<String, AlertingEvent> kafkaTemplate;
+    private final KafkaTemplate<String, UserUsageEvent> userUsageTemplate;
+    private final EnergyUsageWriter energyUsageWriter;
+    private final RollingUsageAggregator rollingUsageAggregator;
+    private final DeviceRegistry deviceRegistry;
+    private final UserSettingsRegistry userSettingsRegistry;
+    private final AlertStateMachine alertStateMachine;
+    private final UsageRollupService usageRollupService;
+    private final UsageQueryCache usageQueryCache;
+    private final AlertPartitioner alertPartitioner;
+    private final BudgetEvaluator budgetEvaluator;
+    private final AlertStateMachine budgetStateMachine;
+    private final AnomalyDetector anomalyDetector;
 
     public UsageService(InfluxDBClient influxDBClient,
-                        DeviceClient deviceClient,
-                        UserClient userClient,
-                        KafkaTemplate<String, AlertingEvent> kafkaTemplate) {
+                        KafkaTemplate<String, AlertingEvent> kafkaTemplate,
+                        KafkaTemplate<String, UserUsageEvent> userUsageTemplate,
+                        EnergyUsageWriter energyUsageWriter,
+                        RollingUsageAggregator rollingUsageAggregator,
+                        DeviceRegistry deviceRegistry,
+                        UserSettingsRegistry userSettingsRegistry,
+                        AlertStateMachine alertStateMachine,
+                        UsageRollupService usageRollupService,
+                        UsageQueryCache usageQueryCache,
+                        AlertPartitioner alertPartitioner,
+                        BudgetEvaluator budgetEvaluator,
+                        @Qualifier("budgetStateMachine") AlertStateMachine budgetStateMachine,
+                        AnomalyDetector anomalyDetector) {
         this.influxDBClient = influxDBClient;
-        this.deviceClient = deviceClient;
-        this.userClient = userClient;
         this.kafkaTemplate = kafkaTemplate;
+        this.userUsageTemplate = userUsageTemplate;
+        this.energyUsageWriter = energyUsageWriter;
+        this.rollingUsageAggregator = rollingUsageAggregator;
+        this.deviceRegistry = deviceRegistry;
+        this.userSettingsRegistry = userSettingsRegistry;
+        this.alertStateMachine = alertStateMachine;
+        this.usageRollupService = usageRollupService;
+        this.usageQueryCache = usageQueryCache;
+        this.alertPartitioner = alertPartitioner;
+        this.budgetEvaluator = budgetEvaluator;
+        this.budgetStateMachine = budgetStateMachine;
+        this.anomalyDetector = anomalyDetector;
     }
 
-    @KafkaListener(topics = "energy-usage", groupId = "usage-service")
-    public void energyUsageEvent(EnergyUsageEvent energyUsageEvent, Acknowledgment acknowledgment) {
-        try {
-            log.info("Received energy usage event: {}", energyUsageEvent);
-            
-            // Check InfluxDB connection health
-            if (!isInfluxDBHealthy()) {
-                log.error("InfluxDB is not healthy - skipping message processing");
-                acknowledgment.acknowledge();
-                return;
+    @Override
+    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+        final List<TopicPartition> windowPartitions = windowPartitions(assignments.keySet());
+        if (!windowPartitions.isEmpty()) {
+            final List<Integer> partitions = windowPartitions.stream().map(TopicPartition::partition).toList();
+            synchronized (evaluationLock) {
+                alertStateMachine.restore(partitions);
+                budgetStateMachine.restore(partitions);
+                alertPartitioner.onAssigned(windowPartitions);
             }
-            
-            if (influxBucket == null || influxOrg == null) {
-                log.error("InfluxDB configuration is missing - bucket or org is null");
-                acknowledgment.acknowledge();
-                return;
+            rollingUsageAggregator.assign(windowPartitions, callback);
+            // Evaluate the users that just moved here on the next cycle
+            lastFullSweepAt = 0;
+            return;
+        }
+        // Continue from the anomaly baselines restored from a snapshot; records they already hold are skipped on replay
+        for (TopicPartition partition : assignments.keySet()) {
+            final long offset = anomalyDetector.resumeOffset(partition.partition());
+            if (offset >= 0) {
+                callback.seek(partition.topic(), partition.partition(), offset);
             }
-            
-            Point point = Point.measurement("energy_usage")
-                    .addTag("deviceId", String.valueOf(energyUsageEvent.deviceId()))
-                    .addField("energyConsumed", energyUsageEvent.energyConsumed())
-                    .time(energyUsageEvent.timestamp(), WritePrecision.MS);
-            influxDBClient.getWriteApiBlocking().writePoint(
-                    Objects.requireNonNull(influxBucket, "influxBucket cannot be null"),
-                    Objects.requireNonNull(influxOrg, "influxOrg cannot be null"),
-                    point);
-            log.debug("Successfully wrote energy usage for device {}", energyUsageEvent.deviceId());
-            acknowledgment.acknowledge();
-        } catch (Exception e) {
-            log.error("Failed to process energy usage event for device {}: {}", 
-                    energyUsageEvent.deviceId(), e.getMessage());
-            // Acknowledge to prevent infinite retries
-            acknowledgment.acknowledge();
         }
     }
 
-    private boolean isInfluxDBHealthy() {
-        try {
-            influxDBClient.ping();
-            return true;
-        } catch (Exception e) {
-            log.warn("InfluxDB health check failed: {}", e.getMessage());
-            return false;
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        final List<TopicPartition> windowPartitions = windowPartitions(partitions);
+        if (!windowPartitions.isEmpty()) {
+            final List<Integer> revoked = windowPartitions.stream().map(TopicPartition::partition).toList();
+            // Hand the users' alert states over before giving up their partitions
+            synchronized (evaluationLock) {
+                alertStateMachine.persist();
+                budgetStateMachine.persist();
+                alertPartitioner.onRevoked(windowPartitions);
+                alertStateMachine.drop(revoked);
+                budgetStateMachine.drop(revoked);
+            }
+            rollingUsageAggregator.release(windowPartitions);
         }
     }
 
-    @Scheduled(cron = "*/10 * * * * *")
-    public void aggregateDeviceEnergyUsage() {
-        log.info("Starting aggregateDeviceEnergyUsage...");
-        final Instant now = Instant.now();
-        final Instant oneDayAgo = now.minusSeconds(86400); // Look back 24 hours for testing
+    private static List<TopicPartition> windowPartitions(Collection<TopicPartition> partitions) {
+        return partitions.stream()
+                .filter(partition -> AlertPartitioner.TOPIC.equals(partition.topic()))
+                .toList();
+    }
+
+    // Records are keyed by deviceId and each partition is owned by one container thread,
+    // so per-device ordering holds while throughput scales with partitions.
+    @KafkaListener(topics = "energy-usage", groupId = "usage-service",
+            concurrency = "${usage.kafka.listener.concurrency:3}", batch = "true")
+    public void energyUsageEvents(List<ConsumerRecord<String, EnergyUsageEvent>> records, Acknowledgment acknowledgment) {
+        log.debug("Received {} energy usage events", records.size());
 
         if (influxBucket == null || influxOrg == null) {
-            log.error("InfluxDB configuration is missing - cannot aggregate device energy usage");
+            log.error("InfluxDB configuration is missing - bucket or org is null");
+            acknowledgment.acknowledge();
             return;
         }
-        
-        log.info("Querying InfluxDB from {} to {}", oneDayAgo, now);
-        String fluxQuery = String.format("""
-        from(bucket: "%s")
-          |> range(start: time(v: "%s"), stop: time(v: "%s"))
-          |> filter(fn: (r) => r["_measurement"] == "energy_usage")
-          |> filter(fn: (r) => r["_field"] == "energyConsumed")
-          |> filter(fn: (r) => exists(r["deviceId"]))
-          |> group(columns: ["deviceId"])
-          |> sum(column: "_value")
-        """, influxBucket, oneDayAgo.toString(), now.toString());
-
-        QueryApi queryApi = influxDBClient.getQueryApi();
-        List<FluxTable> tables = queryApi.query(
-                Objects.requireNonNull(fluxQuery, "fluxQuery cannot be null"),
-                Objects.requireNonNull(influxOrg, "influxOrg cannot be null"));
 
-        log.info("InfluxDB query executed, found {} tables", tables.size());
-        List<DeviceEnergy> deviceEnergies = new ArrayList<>();
+        final List<ConsumerRecord<String, EnergyUsageEvent>> validRecords = new ArrayList<>(records.size());
+        final List<EnergyUsageEvent> validEvents = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, EnergyUsageEvent> record : records) {
+            final EnergyUsageEvent energyUsageEvent = record.value();
+            if (energyUsageEvent == null || energyUsageEvent.deviceId() == null
+                    || energyUsageEvent.timestamp() == null) {
+                log.warn("Skipping malformed energy usage event: {}", energyUsageEvent);
+                continue;
+            }
+            validRecords.add(record);
+            validEvents.add(energyUsageEvent);
+        }
+
+        // Tag points with owner/type/location from the device registry (one bulk call for misses).
+        // Devices the registry cannot resolve are written untagged and picked up by the retag backfill.
+        final Map<Long, DeviceDto> knownDevices = deviceRegistry.getDevices(validEvents.stream()
+                .map(EnergyUsageEvent::deviceId)
+                .collect(Collectors.toSet()));
+        final List<Point> points = new ArrayList<>(validEvents.size());
+        for (EnergyUsageEvent energyUsageEvent : validEvents) {
+            points.add(energyUsageWriter.toPoint(energyUsageEvent.deviceId(),
+                    energyUsageEvent.energyConsumed(),
+                    energyUsageEvent.timestamp(),
+                    knownDevices.get(energyUsageEvent.deviceId())));
+        }
 
-        for (FluxTable table : tables) {
-            for (FluxRecord record : table.getRecords()) {
-                Object deviceIdObj = record.getValueByKey("deviceId");
-                Object energyValue = record.getValue();
-                if (deviceIdObj == null || energyValue == null || deviceIdObj.toString().isEmpty()) {
-                    log.warn("Skipping record with null/empty deviceId or energy value: {}", record);
-                    continue;
-                }
-                log.info("Found record: deviceId={}, energy={}", 
-                    deviceIdObj, energyValue);
-                deviceEnergies.add(
-                        DeviceEnergy.builder()
-                                .deviceId(Long.valueOf(deviceIdObj.toString()))
-                                .energyConsumed(Double.valueOf(energyValue.toString()))
-                                .build()
-                );
+        try {
+            energyUsageWriter.write(points);
+            publishByUser(validEvents, knownDevices);
+            // Only commit once InfluxDB and energy-usage-by-user have the whole poll
+            acknowledgment.acknowledge();
+        } catch (Exception e) {
+            // Points are idempotent on (measurement, tags, time), so redelivering the batch is safe for
+            // InfluxDB; readings already republished before a failed send reach the window twice
+            log.error("Failed to store {} energy usage points, redelivering in {}: {}",
+                    points.size(), writeRetryBackoff, e.getMessage());
+            acknowledgment.nack(0, writeRetryBackoff);
+            return;
+        }
+
+        usageQueryCache.markIngested(knownDevices.values().stream()
+                .map(DeviceDto::userId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet()));
+        detectAnomalies(validRecords, knownDevices);
+    }
+
+    /**
+     * Republishes the readings of devices with a known owner to {@code energy-usage-by-user},
+     * on the owner's partition, for the replica that evaluates the owner (see
+     * {@link AlertPartitioner}), and waits until the broker has them. This happens only
+     * after the InfluxDB write, so a reading is in InfluxDB before any window can see it.
+     * Readings of devices without a known owner are written untagged and left to the retag
+     * backfill.
+     */
+    private void publishByUser(List<EnergyUsageEvent> events, Map<Long, DeviceDto> knownDevices) {
+        final List<CompletableFuture<?>> sends = new ArrayList<>(events.size());
+        for (EnergyUsageEvent event : events) {
+            final DeviceDto device = knownDevices.get(event.deviceId());
+            if (device == null || device.userId() == null) {
+                continue;
             }
+            final UserUsageEvent userUsageEvent = UserUsageEvent.builder()
+                    .userId(device.userId())
+                    .deviceId(event.deviceId())
+                    .energyConsumed(event.energyConsumed())
+                    .timestamp(event.timestamp())
+                    .build();
+            sends.add(userUsageTemplate.send(AlertPartitioner.TOPIC, alertPartitioner.partitionOf(device.userId()),
+                    String.valueOf(device.userId()), userUsageEvent));
         }
-        log.info("Aggregated device energies over the past hour: {}", deviceEnergies);
+        // Bounded by the producer's delivery.timeout.ms
+        CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).join();
+    }
 
-        for (DeviceEnergy deviceEnergy : deviceEnergies) {
-            try {
-                final DeviceDto deviceResponse = deviceClient.getDeviceById(deviceEnergy.getDeviceId());
+    /**
+     * Feeds the rolling window from the partitions of {@code energy-usage-by-user} assigned
+     * to this replica, which hold every reading of the users it evaluates. One consumer, so
+     * a partition's rebuild on assignment never runs alongside its records. Offsets are not
+     * committed: a partition continues from a restored snapshot or from its rebuild.
+     */
+    @KafkaListener(topics = AlertPartitioner.TOPIC, groupId = "usage-window", batch = "true", concurrency = "1",
+            properties = {"auto.offset.reset=latest", "enable.auto.commit=false",
+                    "partition.assignment.strategy=org.apache.kafka.clients.consumer.CooperativeStickyAssignor"})
+    public void windowEvents(List<ConsumerRecord<String, UserUsageEvent>> records) {
+        rollingUsageAggregator.record(records);
+    }
 
-                if (deviceResponse == null || deviceResponse.id() == null) {
-                    log.warn("Device not found for ID: {}", deviceEnergy.getDeviceId());
-                    continue;
+    /**
+     * Runs each written reading through the device's baseline and publishes an anomaly
+     * alert for devices of users with alerting on. Records are keyed by deviceId, so each
+     * device is only seen by the replica consuming its partition.
+     */
+    private void detectAnomalies(List<ConsumerRecord<String, EnergyUsageEvent>> records,
+                                 Map<Long, DeviceDto> knownDevices) {
+        if (!anomalyDetector.isEnabled()) {
+            return;
+        }
+        List<DeviceAnomaly> anomalies = null;
+        for (ConsumerRecord<String, EnergyUsageEvent> record : records) {
+            final EnergyUsageEvent event = record.value();
+            final DeviceAnomaly anomaly = anomalyDetector.observe(record.partition(), record.offset(),
+                    event.deviceId(), event.energyConsumed(), event.timestamp());
+            if (anomaly != null) {
+                if (anomalies == null) {
+                    anomalies = new ArrayList<>();
                 }
-                deviceEnergy.setUserId(deviceResponse.userId());
-            } catch (Exception e) {
-                log.warn("Failed to fetch device for ID: {}", deviceEnergy.getDeviceId());
+                anomalies.add(anomaly);
             }
         }
+        if (anomalies == null) {
+            return;
+        }
 
-        // remove devices with null userId
-        deviceEnergies.removeIf(de -> de.getUserId() == null);
+        final Map<Long, UserAlertSettingsDto> userSettings = userSettingsRegistry.getSettings(anomalies.stream()
+                .map(anomaly -> knownDevices.get(anomaly.deviceId()))
+                .filter(device -> device != null && device.userId() != null)
+                .map(DeviceDto::userId)
+                .collect(Collectors.toSet()));
+        for (DeviceAnomaly anomaly : anomalies) {
+            final DeviceDto device = knownDevices.get(anomaly.deviceId());
+            final UserAlertSettingsDto settings = device == null ? null : userSettings.get(device.userId());
+            if (settings == null || !settings.alerting()) {
+                continue;
+            }
+            log.info("ANOMALY: Device {} of user {} consumed {} in the hour from {}, expected {}",
+                    anomaly.deviceId(), device.userId(), anomaly.consumed(), anomaly.hour(), anomaly.expected());
+            final AlertingEvent alertingEvent = AlertingEvent.builder()
+                    .type(AlertingEvent.TYPE_ANOMALY)
+                    .userId(device.userId())
+                    .message("Unusual energy consumption on " + (device.name() != null ? device.name() : "device " + device.id()))
+                    .threshold(anomaly.threshold())
+                    .energyConsumed(anomaly.consumed())
+                    .deviceId(device.id())
+                    .device(device.name())
+                    .expectedValue(anomaly.expected())
+                    .averageValue(anomaly.average())
+                    .email(settings.emailNotifications() ? settings.email() : null)
+                    .build();
+            kafkaTemplate.send("energy-alerts", alertingEvent);
+        }
+    }
 
-        // Get user-device mapping and aggregate per user
-        Map<Long, List<DeviceEnergy>> userDeviceEnergyMap =
-                deviceEnergies.stream()
-                        .collect(Collectors.groupingBy(DeviceEnergy::getUserId));
+    @Scheduled(cron = "*/10 * * * * *")
+    public void aggregateDeviceEnergyUsage() {
+        synchronized (evaluationLock) {
+            evaluateAlerts();
+        }
+    }
+
+    private void evaluateAlerts() {
+        log.info("Starting aggregateDeviceEnergyUsage...");
 
-        log.info("User-Device Energy Map: {}", userDeviceEnergyMap);
+        if (influxBucket == null || influxOrg == null) {
+            log.error("InfluxDB configuration is missing - cannot aggregate device energy usage");
+            return;
+        }
 
-        // get users energy consumption thresholds
-        List<Long> userIds = new ArrayList<>(userDeviceEnergyMap.keySet());
+        // The in-memory window is authoritative for the partitions it is warm for; users of partitions
+        // still cold (being rebuilt, or whose rebuild failed) are summed by a Flux query instead.
+        // Between full sweeps only users with new usage (or an alert in progress) are re-evaluated.
+        final long cycleStart = System.currentTimeMillis();
+        final boolean fullSweep = cycleStart - lastFullSweepAt >= fullSweepInterval.toMillis();
+        final Map<Long, Double> userTotals;
+        if (!fullSweep) {
+            userTotals = dirtyUserTotals();
+        } else {
+            rollingUsageAggregator.drainDirtyDevices();
+            lastFullSweepAt = cycleStart;
+            userTotals = rollingUsageAggregator.userTotals();
+        }
+        final Set<Integer> coldPartitions = rollingUsageAggregator.coldPartitions();
+        if (!coldPartitions.isEmpty()) {
+            final Instant now = Instant.now();
+            totalsByUser(queryDeviceEnergies(now.minus(aggregationWindow), now)).forEach((userId, total) -> {
+                if (coldPartitions.contains(alertPartitioner.partitionOf(userId))) {
+                    userTotals.put(userId, total);
+                }
+            });
+        }
+
+        // remove users another replica evaluates
+        userTotals.keySet().removeIf(userId -> !alertPartitioner.owns(userId));
+        log.info("Aggregated energy for {} users over the past {}", userTotals.size(), aggregationWindow);
+        log.debug("User totals: {}", userTotals);
+
+        // get users energy consumption thresholds from the local settings cache (one bulk call for misses)
+        final Map<Long, UserAlertSettingsDto> userSettings =
+                userSettingsRegistry.getSettings(userTotals.keySet());
         final Map<Long, Double> userThresholdMap = new HashMap<>();
         final Map<Long, String> userEmailMap = new HashMap<>();
 
-        for (final Long userId : userIds) {
-            try {
-                UserDto user = userClient.getUserById(userId);
-                if (user == null || user.id() == null || !user.alerting()) {
-                    log.warn("User not found or alerting disabled for ID: {}", userId);
-                    continue;
-                }
-                userThresholdMap.put(userId, user.energyAlertingThreshold());
-                // Only add to email map if user has email notifications enabled
-                if (user.emailNotifications()) {
-                    userEmailMap.put(userId, user.email());
-                }
-            } catch (Exception e) {
-                log.warn("Failed to fetch user for ID: {}", userId);
+        for (final Long userId : userTotals.keySet()) {
+            final UserAlertSettingsDto settings = userSettings.get(userId);
+            if (settings == null || !settings.alerting()) {
+                log.debug("User not found or alerting disabled for ID: {}", userId);
+                continue;
+            }
+            userThresholdMap.put(userId, settings.energyAlertingThreshold());
+            // Only add to email map if user has email notifications enabled
+            if (settings.emailNotifications()) {
+                userEmailMap.put(userId, settings.email());
             }
         }
         log.info("User Threshold Map: {}", userThresholdMap);
 
 
         // Check thresholds against aggregated usage
+        final long nowMillis = System.currentTimeMillis();
         final List<Long> alertedUsers = new ArrayList<>(userThresholdMap.keySet());
         for (final Long userId : alertedUsers) {
             final Double threshold = userThresholdMap.get(userId);
-            final List<DeviceEnergy> devices = userDeviceEnergyMap.get(userId);
+            final Double totalConsumption = userTotals.get(userId);
 
-            final Double totalConsumption = devices.stream()
-                    .mapToDouble(DeviceEnergy::getEnergyConsumed)
-                    .sum();
-
-           if (totalConsumption > threshold) {
+           // The state machine only lets the first cycle of a breach through
+           if (alertStateMachine.evaluate(userId, totalConsumption, threshold, nowMillis)) {
                log.info("ALERT: User ID {} has exceeded the energy threshold! " +
                        "Total Consumption: {}, Threshold: {}",
                        userId, totalConsumption, threshold);
                // Put message on kafak alert-topic
                final AlertingEvent alertingEvent = AlertingEvent.builder()
                        .userId(userId)
+                       .type(AlertingEvent.TYPE_THRESHOLD)
                        .message("Energy consumption threshold exceeded")
                        .threshold(threshold)
                        .energyConsumed(totalConsumption)
@@ -228,17 +415,230 @@ public class UsageService {
                        .build();
                kafkaTemplate.send("energy-alerts", alertingEvent);
            } else {
-                log.info("User ID {} is within the energy threshold. " +
+                log.debug("User ID {} not alerted (state {}). " +
                           "Total Consumption: {}, Threshold: {}",
-                          userId, totalConsumption, threshold);
+                          userId, alertStateMachine.getState(userId), totalConsumption, threshold);
            }
         }
+        alertStateMachine.settle(userThresholdMap.keySet(), alertPartitioner::owns, nowMillis);
+        alertStateMachine.persist();
+
+        evaluateBudgets(userTotals.keySet(), nowMillis);
+    }
+
+    /**
+     * Checks the energy budgets of the evaluated users, plus users with a budget alert
+     * still in progress, against the in-memory aggregates. Budgets have their own alert
+     * states, keyed by budget id. Users of partitions the aggregator is not warm for are
+     * skipped and their budget states left as they are, since the Flux fallback only covers
+     * the alerting window.
+     */
+    private void evaluateBudgets(Set<Long> evaluatedUsers, long nowMillis) {
+        if (!rollingUsageAggregator.isWarm()) {
+            return;
+        }
+        final Predicate<Long> evaluable = userId -> alertPartitioner.owns(userId) && rollingUsageAggregator.isWarm(userId);
+        final Set<Long> candidateUsers = new HashSet<>(evaluatedUsers);
+        candidateUsers.addAll(budgetStateMachine.activeUserIds());
+        candidateUsers.removeIf(evaluable.negate());
+
+        final Map<Long, UserAlertSettingsDto> userSettings = userSettingsRegistry.getSettings(candidateUsers);
+        final Set<Long> alertingUsers = new HashSet<>();
+        userSettings.forEach((userId, settings) -> {
+            if (settings.alerting()) {
+                alertingUsers.add(userId);
+            }
+        });
+        final Map<Long, List<EnergyBudgetDto>> budgets = new HashMap<>(userSettingsRegistry.getBudgets(alertingUsers));
+        budgets.values().removeIf(List::isEmpty);
+
+        final BudgetEvaluator.CompiledBudgets compiled = budgetEvaluator
+                .compile(budgets, deviceRegistry.getDevicesForUsers(budgets.keySet()))
+                .evaluate();
+        final Set<Long> evaluatedBudgets = new HashSet<>(compiled.size());
+        for (int i = 0; i < compiled.size(); i++) {
+            final EnergyBudgetDto budget = compiled.budget(i);
+            final Long userId = compiled.userId(i);
+            final double consumption = compiled.consumption(i);
+            evaluatedBudgets.add(budget.id());
+            if (budgetStateMachine.evaluate(budget.id(), userId, consumption, budget.limit(), nowMillis)) {
+                log.info("ALERT: User ID {} has exceeded energy budget {} ({} {}). Consumption: {}, Limit: {}",
+                        userId, budget.id(), budget.window(), budget.scope(), consumption, budget.limit());
+                final UserAlertSettingsDto settings = userSettings.get(userId);
+                final AlertingEvent alertingEvent = AlertingEvent.builder()
+                        .userId(userId)
+                        .type(AlertingEvent.TYPE_BUDGET)
+                        .message(budgetMessage(budget))
+                        .threshold(budget.limit())
+                        .energyConsumed(consumption)
+                        .email(settings.emailNotifications() ? settings.email() : null)
+                        .build();
+                kafkaTemplate.send("energy-alerts", alertingEvent);
+            }
+        }
+        budgetStateMachine.settle(evaluatedBudgets, evaluable, nowMillis);
+        budgetStateMachine.persist();
+    }
+
+    private static String budgetMessage(EnergyBudgetDto budget) {
+        final String window = switch (budget.window()) {
+            case "HOUR" -> "Hourly";
+            case "DAY" -> "Daily";
+            default -> "Monthly";
+        };
+        return switch (budget.scope()) {
+            case "DEVICE" -> window + " energy budget exceeded for device " + budget.deviceId();
+            case "DEVICE_TYPE" -> window + " energy budget exceeded for " + budget.deviceType() + " devices";
+            default -> window + " energy budget exceeded";
+        };
+    }
+
+
+    /**
+     * Rolling totals of the users that need evaluating this cycle: owners of devices with
+     * new usage, plus users whose alert is still TRIPPED or COOLDOWN, for the partitions the
+     * window is warm for.
+     */
+    private Map<Long, Double> dirtyUserTotals() {
+        final long[] dirtyDevices = rollingUsageAggregator.drainDirtyDevices();
+        final Set<Long> dirtyDeviceIds = new HashSet<>(dirtyDevices.length);
+        for (long deviceId : dirtyDevices) {
+            dirtyDeviceIds.add(deviceId);
+        }
+
+        final Set<Long> candidateUsers = new HashSet<>(alertStateMachine.activeUserIds());
+        for (DeviceDto device : deviceRegistry.getDevices(dirtyDeviceIds).values()) {
+            if (device.userId() != null) {
+                candidateUsers.add(device.userId());
+            }
+        }
+        candidateUsers.removeIf(userId -> !alertPartitioner.owns(userId) || !rollingUsageAggregator.isWarm(userId));
+
+        final Map<Long, Double> userTotals = new HashMap<>();
+        deviceRegistry.getDevicesForUsers(candidateUsers).forEach((userId, devices) -> {
+            double total = 0.0;
+            for (DeviceDto device : devices) {
+                total += rollingUsageAggregator.rollingTotal(device.id());
+            }
+            if (total > 0) {
+                userTotals.put(userId, total);
+            }
+        });
+        log.debug("Evaluating {} users with new usage or an active alert ({} dirty devices)",
+                candidateUsers.size(), dirtyDevices.length);
+        return userTotals;
+    }
+
+    private Map<Long, Double> totalsByUser(List<DeviceEnergy> deviceEnergies) {
+        // Resolve device owners from the local registry; misses cost one bulk call at most
+        final Map<Long, DeviceDto> knownDevices = deviceRegistry.getDevices(deviceEnergies.stream()
+                .map(DeviceEnergy::getDeviceId)
+                .collect(Collectors.toSet()));
+        final Map<Long, Double> userTotals = new HashMap<>();
+        for (DeviceEnergy deviceEnergy : deviceEnergies) {
+            final DeviceDto device = knownDevices.get(deviceEnergy.getDeviceId());
+            if (device == null || device.userId() == null) {
+                log.warn("Device not found for ID: {}", deviceEnergy.getDeviceId());
+                continue;
+            }
+            userTotals.merge(device.userId(), deviceEnergy.getEnergyConsumed(), Double::sum);
+        }
+        return userTotals;
+    }
+
+    private List<DeviceEnergy> queryDeviceEnergies(Instant start, Instant stop) {
+        log.info("Querying InfluxDB from {} to {}", start, stop);
+        // Whole hours/days come from the rollups; only the edges of the range touch raw points
+        String fluxQuery = usageRollupService.usageSource(start, stop, "exists(r[\"deviceId\"])")
+                .append("""
+                  |> group(columns: ["deviceId"])
+                  |> sum(column: "_value")
+                """)
+                .build();
+
+        // One row per device arrives from the server-side sum; fold each straight into the result
+        final List<DeviceEnergy> deviceEnergies = new ArrayList<>();
+        streamQuery(fluxQuery, record -> {
+            Object deviceIdObj = record.getValueByKey("deviceId");
+            Object energyValue = record.getValue();
+            if (deviceIdObj == null || !(energyValue instanceof Number energy) || deviceIdObj.toString().isEmpty()) {
+                log.warn("Skipping record with null/empty deviceId or energy value: {}", record);
+                return;
+            }
+            deviceEnergies.add(
+                    DeviceEnergy.builder()
+                            .deviceId(Long.valueOf(deviceIdObj.toString()))
+                            .energyConsumed(energy.doubleValue())
+                            .build()
+            );
+        });
+
+        log.info("InfluxDB query executed, found {} devices", deviceEnergies.size());
+        return deviceEnergies;
+    }
+
+    /**
+     * Runs a Flux query and hands each record to {@code consumer} as it is decoded, so no
+     * result table is held in memory. Records are delivered sequentially on the client's
+     * response thread; throws if the query fails or exceeds {@code usage.query.timeout}.
+     */
+    private void streamQuery(String fluxQuery, Consumer<FluxRecord> consumer) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Cancellable> query = new AtomicReference<>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        influxDBClient.getQueryApi().query(
+                Objects.requireNonNull(fluxQuery, "fluxQuery cannot be null"),
+                Objects.requireNonNull(influxOrg, "influxOrg cannot be null"),
+                (cancellable, record) -> {
+                    query.compareAndSet(null, cancellable);
+                    if (abandoned.get()) {
+                        // The caller gave up before the first record arrived
+                        cancellable.cancel();
+                        return;
+                    }
+                    consumer.accept(record);
+                },
+                error -> {
+                    failure.set(error);
+                    done.countDown();
+                },
+                done::countDown);
+        try {
+            if (!done.await(queryTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                abandon(query, abandoned);
+                throw new IllegalStateException("InfluxDB query timed out after " + queryTimeout);
+            }
+        } catch (InterruptedException e) {
+            abandon(query, abandoned);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for InfluxDB query", e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get().getMessage(), failure.get());
+        }
     }
 
+    /**
+     * Stops a query whose caller has stopped waiting, so it no longer streams into a
+     * discarded result.
+     */
+    private static void abandon(AtomicReference<Cancellable> query, AtomicBoolean abandoned) {
+        abandoned.set(true);
+        final Cancellable cancellable = query.get();
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+    }
 
     public UsageDto getXDaysUsageForUser(Long userId, int days) {
+        // Served from memory until new usage arrives for one of the user's devices
+        return usageQueryCache.get(userId, days, () -> queryXDaysUsageForUser(userId, days));
+    }
+
+    private UsageDto queryXDaysUsageForUser(Long userId, int days) {
         log.info("Getting usage for userId {} over past {} days", userId, days);
-        final List<DeviceDto> devicesDto = deviceClient.getAllDevicesForUser(userId);
+        final List<DeviceDto> devicesDto = deviceRegistry.getDevicesForUser(userId);
 
         final List<Device> devices = new ArrayList<>();
         for (DeviceDto deviceDto : devicesDto) {
@@ -258,21 +658,9 @@ public class UsageService {
                     .build();
         }
 
-        // build a set of device ids to filter on Flux query
-        List<String> deviceIdStrings = devices.stream()
-                .map(Device::getId)
-                .filter(Objects::nonNull)
-                .map(String::valueOf)
-                .toList();
-
         final Instant now = Instant.now();
         final Instant start  = now.minusSeconds((long) days * 24 * 3600);
 
-        // build device filter "r[\"deviceId\"] == \"1\" or r[\"deviceId\"] == \"2\""
-        final String deviceFilter = deviceIdStrings.stream()
-                .map(idStr -> String.format("r[\"deviceId\"] == \"%s\"", idStr))
-                .collect(Collectors.joining(" or "));
-
         if (influxBucket == null || influxOrg == null) {
             log.error("InfluxDB configuration is missing - cannot get usage for user {}", userId);
             return UsageDto.builder()
@@ -280,48 +668,42 @@ public class UsageService {
                     .devices(null)
                     .build();
         }
-        
-        String fluxQuery = String.format("""
-        from(bucket: "%s")
-          |> range(start: time(v: "%s"), stop: time(v: "%s"))
-          |> filter(fn: (r) => r["_measurement"] == "energy_usage")
-          |> filter(fn: (r) => r["_field"] == "energyConsumed")
-          |> filter(fn: (r) => exists(r["deviceId"]))
-          |> filter(fn: (r) => %s)
-          |> group(columns: ["deviceId"])
-          |> sum(column: "_value")
-        """, influxBucket, start.toString(), now.toString(), deviceFilter);
-
-        final Map<Long, Double> aggregatedMap = new HashMap<>();
 
-        try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(fluxQuery,
-                    Objects.requireNonNull(influxOrg, "influxOrg cannot be null"));
+        // Points carry their owner's userId tag, so one indexed tag predicate selects all of the
+        // user's devices and the query text stays the same size however many devices they own.
+        // Whole days/hours are read from the rollups, so the cost no longer grows with raw point count.
+        String fluxQuery = usageRollupService.usageSource(start, now, "r[\"userId\"] == params.userId")
+                .append("""
+                  |> group(columns: ["deviceId"])
+                  |> sum(column: "_value")
+                """)
+                .bind("userId", String.valueOf(userId))
+                .build();
 
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    Object deviceIdObj = record.getValueByKey("deviceId");
-                    String deviceIdStr = deviceIdObj == null ? null : deviceIdObj.toString();
-                    if (deviceIdStr == null) continue;
+        // Primitive per-device accumulators indexed by the user's device list
+        final Map<Long, Integer> deviceIndex = new HashMap<>();
+        for (int i = 0; i < devices.size(); i++) {
+            deviceIndex.put(devices.get(i).getId(), i);
+        }
+        final double[] totals = new double[devices.size()];
 
-                    Object valueObj = record.getValueByKey("_value");
-                    Double energyConsumed = (valueObj instanceof Number)
-                            ? ((Number) valueObj).doubleValue()
-                            : 0.0;
+        try {
+            streamQuery(fluxQuery, record -> {
+                Object deviceIdObj = record.getValueByKey("deviceId");
+                String deviceIdStr = deviceIdObj == null ? null : deviceIdObj.toString();
+                if (deviceIdStr == null) return;
 
-                    try {
-                        Long deviceId = Long.valueOf(deviceIdStr);
-                        aggregatedMap.put(deviceId, aggregatedMap.getOrDefault(deviceId, 0.0) + energyConsumed);
-                    } catch (NumberFormatException nfe) {
-                        log.warn("Failed to parse deviceId from flux record: {}", deviceIdStr);
+                try {
+                    final Integer index = deviceIndex.get(Long.valueOf(deviceIdStr));
+                    if (index != null && record.getValue() instanceof Number energyConsumed) {
+                        totals[index] += energyConsumed.doubleValue();
                     }
+                } catch (NumberFormatException nfe) {
+                    log.warn("Failed to parse deviceId from flux record: {}", deviceIdStr);
                 }
-            }
+            });
         } catch (Exception e) {
             log.error("Failed to query InfluxDB for user {} usage over {} days: {}", userId, days, e.getMessage());
-            // set aggregatedConsumption to 0.0 on error
-            devices.forEach(d -> d.setEnergyConsumed(0.0));
             return UsageDto.builder()
                     .userId(userId)
                     .devices(null)
@@ -329,12 +711,11 @@ public class UsageService {
         }
 
         // populate aggregated energy consumed per device
-        for (Device device : devices) {
-            if (device == null || device.getId() == null) continue;
-            device.setEnergyConsumed(aggregatedMap.getOrDefault(device.getId(), 0.0));
+        for (int i = 0; i < devices.size(); i++) {
+            devices.get(i).setEnergyConsumed(totals[i]);
         }
 
-        log.info("Aggregated energy consumption for userId {}: {}", userId, aggregatedMap);
+        log.info("Aggregated energy consumption for userId {} across {} devices", userId, devices.size());
 
         final List<DeviceDto> resultDevices = devices.stream()
                 .map(d -> DeviceDto.builder()
@@ -353,4 +734,100 @@ public class UsageService {
                 .build();
 
     }
+
+    /**
+     * Usage over the past {@code days} for many users, handed to {@code sink} one user at a
+     * time. Users are processed in chunks of {@code usage.batch.chunk-size}; each chunk costs
+     * one bulk device lookup and one grouped InfluxDB query, and users of a chunk whose query
+     * fails are emitted without devices, as in {@link #getXDaysUsageForUser}.
+     */
+    public void streamXDaysUsageForUsers(List<Long> userIds, int days, Consumer<UsageDto> sink) {
+        final List<Long> distinctUserIds = userIds.stream().filter(Objects::nonNull).distinct().toList();
+        log.info("Getting usage for {} users over past {} days", distinctUserIds.size(), days);
+        final Instant now = Instant.now();
+        final Instant start = now.minusSeconds((long) days * 24 * 3600);
+        for (int from = 0; from < distinctUserIds.size(); from += batchChunkSize) {
+            final List<Long> chunk = distinctUserIds.subList(from, Math.min(from + batchChunkSize, distinctUserIds.size()));
+            queryUsageForUsers(chunk, start, now).forEach(sink);
+        }
+    }
+
+    private List<UsageDto> queryUsageForUsers(List<Long> userIds, Instant start, Instant stop) {
+        final Map<Long, List<DeviceDto>> userDevices = deviceRegistry.getDevicesForUsers(userIds);
+
+        // One primitive accumulator slot per device across the whole chunk
+        final Map<Long, Integer> deviceIndex = new HashMap<>();
+        final List<Long> usersWithDevices = new ArrayList<>();
+        for (Long userId : userIds) {
+            final List<DeviceDto> devices = userDevices.getOrDefault(userId, List.of());
+            if (devices.isEmpty()) {
+                continue;
+            }
+            usersWithDevices.add(userId);
+            for (DeviceDto device : devices) {
+                deviceIndex.putIfAbsent(device.id(), deviceIndex.size());
+            }
+        }
+        final double[] totals = new double[deviceIndex.size()];
+
+        boolean queried = false;
+        if (!usersWithDevices.isEmpty() && influxBucket != null && influxOrg != null) {
+            // A tag regex is pushed down to the storage engine, unlike contains() on a set
+            final Pattern userIdPattern = Pattern.compile(usersWithDevices.stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining("|", "^(", ")$")));
+            final String fluxQuery = usageRollupService.usageSource(start, stop, "r[\"userId\"] =~ params.userIds")
+                    .append("""
+                      |> group(columns: ["deviceId"])
+                      |> sum(column: "_value")
+                    """)
+                    .bind("userIds", userIdPattern)
+                    .build();
+            try {
+                streamQuery(fluxQuery, record -> {
+                    final Object deviceIdObj = record.getValueByKey("deviceId");
+                    if (deviceIdObj == null || !(record.getValue() instanceof Number energyConsumed)) {
+                        return;
+                    }
+                    try {
+                        final Integer index = deviceIndex.get(Long.valueOf(deviceIdObj.toString()));
+                        if (index != null) {
+                            totals[index] += energyConsumed.doubleValue();
+                        }
+                    } catch (NumberFormatException nfe) {
+                        log.warn("Failed to parse deviceId from flux record: {}", deviceIdObj);
+                    }
+                });
+                queried = true;
+            } catch (Exception e) {
+                log.error("Failed to query InfluxDB for usage of {} users: {}", usersWithDevices.size(), e.getMessage());
+            }
+        }
+
+        final List<UsageDto> results = new ArrayList<>(userIds.size());
+        for (Long userId : userIds) {
+            final List<DeviceDto> devices = userDevices.getOrDefault(userId, List.of());
+            if (!queried || devices.isEmpty()) {
+                results.add(UsageDto.builder()
+                        .userId(userId)
+                        .devices(null)
+                        .build());
+                continue;
+            }
+            results.add(UsageDto.builder()
+                    .userId(userId)
+                    .devices(devices.stream()
+                            .map(d -> DeviceDto.builder()
+                                    .id(d.id())
+                                    .name(d.name())
+                                    .type(d.type())
+                                    .location(d.location())
+                                    .userId(d.userId())
+                                    .energyConsumed(totals[deviceIndex.get(d.id())])
+                                    .build())
+                            .toList())
+                    .build());
+        }
+        return results;
+    }
 }
@@ -0,0 +1,114 @@
+package org.aadi.usage_service.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.usage_service.client.UserClient;
+import org.aadi.usage_service.dto.EnergyBudgetDto;
+import org.aadi.usage_service.dto.UserAlertSettingsDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local cache of each user's alerting settings (threshold, alerting and email flags) and
+ * energy budgets. Entries expire after {@code usage.user-settings-cache.ttl}, and all
+ * missing or expired users in a lookup are refreshed together through user-service's bulk
+ * endpoints.
+ */
+@Slf4j
+@Service
+public class UserSettingsRegistry {
+
+    private final UserClient userClient;
+    private final Cache<Long, UserAlertSettingsDto> settings;
+    private final Cache<Long, List<EnergyBudgetDto>> budgets;
+
+    public UserSettingsRegistry(UserClient userClient,
+                                MeterRegistry meterRegistry,
+                                @Value("${usage.user-settings-cache.max-size:100000}") long maxSize,
+                                @Value("${usage.user-settings-cache.ttl:1m}") Duration ttl) {
+        this.userClient = userClient;
+        this.settings = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, settings, "user-settings");
+        this.budgets = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, budgets, "user-budgets");
+    }
+
+    /**
+     * Returns the settings of the known users among {@code userIds}. If user-service cannot
+     * be reached only the cached entries are returned.
+     */
+    public Map<Long, UserAlertSettingsDto> getSettings(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        try {
+            return settings.getAll(userIds, this::loadSettings);
+        } catch (Exception e) {
+            log.warn("Failed to load settings for {} users from user-service, using cached entries only: {}",
+                    userIds.size(), e.getMessage());
+            return settings.getAllPresent(userIds);
+        }
+    }
+
+    /**
+     * Returns the energy budgets of {@code userIds}; users without budgets map to an empty
+     * list. If user-service cannot be reached only the cached entries are returned.
+     */
+    public Map<Long, List<EnergyBudgetDto>> getBudgets(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        try {
+            return budgets.getAll(userIds, this::loadBudgets);
+        } catch (Exception e) {
+            log.warn("Failed to load budgets for {} users from user-service, using cached entries only: {}",
+                    userIds.size(), e.getMessage());
+            return budgets.getAllPresent(userIds);
+        }
+    }
+
+    private Map<Long, UserAlertSettingsDto> loadSettings(Set<? extends Long> missingIds) {
+        log.debug("Loading alert settings for {} users from user-service", missingIds.size());
+        final Map<Long, UserAlertSettingsDto> loaded = new HashMap<>();
+        for (UserAlertSettingsDto userSettings : userClient.getAlertSettings(new ArrayList<>(missingIds))) {
+            if (userSettings != null && userSettings.id() != null) {
+                loaded.put(userSettings.id(), userSettings);
+            }
+        }
+        return loaded;
+    }
+
+    private Map<Long, List<EnergyBudgetDto>> loadBudgets(Set<? extends Long> missingIds) {
+        log.debug("Loading energy budgets for {} users from user-service", missingIds.size());
+        // Cache users without budgets too, so they are not looked up again every cycle
+        final Map<Long, List<EnergyBudgetDto>> loaded = new HashMap<>();
+        for (Long userId : missingIds) {
+            loaded.put(userId, new ArrayList<>());
+        }
+        for (EnergyBudgetDto budget : userClient.getBudgets(new ArrayList<>(missingIds))) {
+            if (budget != null && budget.id() != null && loaded.containsKey(budget.userId())) {
+                loaded.get(budget.userId()).add(budget);
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,544 @@
+package org.aadi.usage_service.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from a {@code long} device id to a slot, with per-slot state
+ * held in primitive column arrays (long, int, float and short columns, as many of each as
+ * the owner asks for). There is no per-entry object and nothing is boxed, so an update
+ * allocates nothing, and an entry costs {@code 8 + 8L + 4I + 4F + 2S} bytes over the
+ * table's capacity.
+ * <p>
+ * Linear probing; removal shifts later entries back instead of leaving tombstones. The
+ * capacity is exactly {@code expectedSize / loadFactor} rather than the next power of two:
+ * a key's home slot is the high 32 bits of a Fibonacci hash multiplied by the capacity
+ * (multiply-high range reduction), which spreads keys over any table size. Growing
+ * doubles the capacity and briefly holds the old and new arrays together, so owners should
+ * size the table for their expected population up front. Slot numbers are only stable
+ * until the next {@link #insert(long)}, which may grow the table. Not thread-safe: owners
+ * guard it with their own lock.
+ * <p>
+ * {@link #beginSnapshot()} freezes the table's contents without copying them: the returned
+ * {@link Snapshot} is written out page by page while the table keeps changing, and a page
+ * that is about to change before it was written is copied aside first (copy-on-write), so
+ * the owner's lock is only held to begin and per page. {@link #readFrom} reads a table back
+ * through memory-mapped regions, one bulk copy per column.
+ */
+public final class DeviceStateTable {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MAX_CAPACITY = 1 << 30;
+    // Elements per mapped region, keeping every region under 2 GB
+    private static final int REGION = 1 << 26;
+    // Slots per snapshot page
+    private static final int PAGE = 4096;
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+
+    private final float loadFactor;
+    private long[] keys;
+    private final long[][] longs;
+    private final int[][] ints;
+    private final float[][] floats;
+    private final short[][] shorts;
+    private int size;
+    private int resizeAt;
+    private Snapshot snapshot;
+
+    public DeviceStateTable(int expectedSize, float loadFactor,
+                            int longColumns, int intColumns, int floatColumns, int shortColumns) {
+        if (loadFactor <= 0 || loadFactor >= 1) {
+            throw new IllegalArgumentException("loadFactor must be in (0, 1)");
+        }
+        this.loadFactor = loadFactor;
+        this.longs = new long[longColumns][];
+        this.ints = new int[intColumns][];
+        this.floats = new float[floatColumns][];
+        this.shorts = new short[shortColumns][];
+        allocate(capacityFor(Math.max(expectedSize, 16)));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public void clear() {
+        if (snapshot != null) {
+            // Fresh arrays leave the snapshot's pages as they were
+            detachSnapshot();
+            allocate(keys.length);
+            size = 0;
+            return;
+        }
+        Arrays.fill(keys, EMPTY);
+        for (long[] column : longs) {
+            Arrays.fill(column, 0L);
+        }
+        for (int[] column : ints) {
+            Arrays.fill(column, 0);
+        }
+        for (float[] column : floats) {
+            Arrays.fill(column, 0f);
+        }
+        for (short[] column : shorts) {
+            Arrays.fill(column, (short) 0);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or -1.
+     */
+    public int find(long key) {
+        for (int slot = home(key); ; slot = next(slot)) {
+            final long current = keys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the slot holding {@code key}, adding it with all columns zeroed if absent.
+     */
+    public int insert(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Unsupported key " + key);
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size >= resizeAt) {
+            grow();
+        }
+        slot = home(key);
+        while (keys[slot] != EMPTY) {
+            slot = next(slot);
+        }
+        beforeWrite(slot);
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Removes the entry in {@code slot}. Entries further along its probe run move back, so
+     * a scan that removes while iterating must re-check the same slot.
+     */
+    public void removeAt(int slot) {
+        int hole = slot;
+        for (int next = next(hole); keys[next] != EMPTY; next = next(next)) {
+            final int home = home(keys[next]);
+            // Move the entry back unless its home lies cyclically in (hole, next]
+            if (distance(home, next) >= distance(hole, next)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        clear(hole);
+        size--;
+    }
+
+    public long getLong(int column, int slot) {
+        return longs[column][slot];
+    }
+
+    public void setLong(int column, int slot, long value) {
+        beforeWrite(slot);
+        longs[column][slot] = value;
+    }
+
+    public int getInt(int column, int slot) {
+        return ints[column][slot];
+    }
+
+    public void setInt(int column, int slot, int value) {
+        beforeWrite(slot);
+        ints[column][slot] = value;
+    }
+
+    public float getFloat(int column, int slot) {
+        return floats[column][slot];
+    }
+
+    public void setFloat(int column, int slot, float value) {
+        beforeWrite(slot);
+        floats[column][slot] = value;
+    }
+
+    public short getShort(int column, int slot) {
+        return shorts[column][slot];
+    }
+
+    public void setShort(int column, int slot, short value) {
+        beforeWrite(slot);
+        shorts[column][slot] = value;
+    }
+
+    /**
+     * Freezes the table's current contents for {@link Snapshot#writeTo}. Must be called
+     * under the owner's lock, which has to be the table's own monitor: the snapshot takes it
+     * per page while writing. Only one snapshot can be open at a time.
+     */
+    public Snapshot beginSnapshot() {
+        if (snapshot != null) {
+            throw new IllegalStateException("A snapshot of this table is already being written");
+        }
+        snapshot = new Snapshot();
+        return snapshot;
+    }
+
+    /**
+     * Writes the table at {@code position} and returns the position after it.
+     */
+    public long writeTo(FileChannel channel, long position) throws IOException {
+        final Snapshot current;
+        synchronized (this) {
+            current = beginSnapshot();
+        }
+        return current.writeTo(channel, position);
+    }
+
+    /**
+     * Replaces the table's contents with a table written by {@link #writeTo} and returns
+     * the position after it. The column layout must match this table's.
+     */
+    public long readFrom(FileChannel channel, long position) throws IOException {
+        final ByteBuffer header = PartitionOffsets.readFully(channel, position, 6 * Integer.BYTES);
+        position += 6 * Integer.BYTES;
+        final int capacity = header.getInt();
+        final int entries = header.getInt();
+        if (header.getInt() != longs.length || header.getInt() != ints.length
+                || header.getInt() != floats.length || header.getInt() != shorts.length) {
+            throw new IOException("Snapshot column layout does not match");
+        }
+        if (capacity < 16 || capacity > MAX_CAPACITY || entries < 0 || entries >= capacity) {
+            throw new IOException("Corrupt snapshot table header");
+        }
+        detachSnapshot();
+        allocate(capacity);
+        position = read(channel, position, keys);
+        for (long[] column : longs) {
+            position = read(channel, position, column);
+        }
+        for (int[] column : ints) {
+            position = read(channel, position, column);
+        }
+        for (float[] column : floats) {
+            position = read(channel, position, column);
+        }
+        for (short[] column : shorts) {
+            position = read(channel, position, column);
+        }
+        size = entries;
+        return position;
+    }
+
+    private static long read(FileChannel channel, long position, long[] values) throws IOException {
+        for (int from = 0; from < values.length; from += REGION) {
+            final int count = Math.min(REGION, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * Long.BYTES)
+                    .asLongBuffer().get(values, from, count);
+            position += (long) count * Long.BYTES;
+        }
+        return position;
+    }
+
+    private static long read(FileChannel channel, long position, int[] values) throws IOException {
+        for (int from = 0; from < values.length; from += REGION) {
+            final int count = Math.min(REGION, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * Integer.BYTES)
+                    .asIntBuffer().get(values, from, count);
+            position += (long) count * Integer.BYTES;
+        }
+        return position;
+    }
+
+    private static long read(FileChannel channel, long position, float[] values) throws IOException {
+        for (int from = 0; from < values.length; from += REGION) {
+            final int count = Math.min(REGION, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * Float.BYTES)
+                    .asFloatBuffer().get(values, from, count);
+            position += (long) count * Float.BYTES;
+        }
+        return position;
+    }
+
+    private static long read(FileChannel channel, long position, short[] values) throws IOException {
+        for (int from = 0; from < values.length; from += REGION) {
+            final int count = Math.min(REGION, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * Short.BYTES)
+                    .asShortBuffer().get(values, from, count);
+            position += (long) count * Short.BYTES;
+        }
+        return position;
+    }
+
+    private int home(long key) {
+        final long hash = (key * 0x9E3779B97F4A7C15L) >>> 32;
+        return (int) ((hash * keys.length) >>> 32);
+    }
+
+    private int next(int slot) {
+        return ++slot == keys.length ? 0 : slot;
+    }
+
+    // Probe steps from slot a forward to slot b, wrapping around the end
+    private int distance(int a, int b) {
+        return b >= a ? b - a : b - a + keys.length;
+    }
+
+    private int capacityFor(int entries) {
+        final long needed = (long) Math.ceil(entries / (double) loadFactor) + 1;
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalStateException("Device state table cannot hold " + entries + " entries");
+        }
+        return (int) Math.max(16, needed);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        for (int c = 0; c < longs.length; c++) {
+            longs[c] = new long[capacity];
+        }
+        for (int c = 0; c < ints.length; c++) {
+            ints[c] = new int[capacity];
+        }
+        for (int c = 0; c < floats.length; c++) {
+            floats[c] = new float[capacity];
+        }
+        for (int c = 0; c < shorts.length; c++) {
+            shorts[c] = new short[capacity];
+        }
+        resizeAt = (int) Math.min((long) (capacity * loadFactor), capacity - 1L);
+    }
+
+    private void grow() {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Device state table is full at " + size + " entries");
+        }
+        // The old arrays are never written again, so an open snapshot can keep reading them
+        detachSnapshot();
+        final long[] oldKeys = keys;
+        final long[][] oldLongs = longs.clone();
+        final int[][] oldInts = ints.clone();
+        final float[][] oldFloats = floats.clone();
+        final short[][] oldShorts = shorts.clone();
+        allocate((int) Math.min((long) oldKeys.length * 2, MAX_CAPACITY));
+
+        for (int from = 0; from < oldKeys.length; from++) {
+            final long key = oldKeys[from];
+            if (key == EMPTY) {
+                continue;
+            }
+            int to = home(key);
+            while (keys[to] != EMPTY) {
+                to = next(to);
+            }
+            keys[to] = key;
+            for (int c = 0; c < longs.length; c++) {
+                longs[c][to] = oldLongs[c][from];
+            }
+            for (int c = 0; c < ints.length; c++) {
+                ints[c][to] = oldInts[c][from];
+            }
+            for (int c = 0; c < floats.length; c++) {
+                floats[c][to] = oldFloats[c][from];
+            }
+            for (int c = 0; c < shorts.length; c++) {
+                shorts[c][to] = oldShorts[c][from];
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        beforeWrite(to);
+        keys[to] = keys[from];
+        for (long[] column : longs) {
+            column[to] = column[from];
+        }
+        for (int[] column : ints) {
+            column[to] = column[from];
+        }
+        for (float[] column : floats) {
+            column[to] = column[from];
+        }
+        for (short[] column : shorts) {
+            column[to] = column[from];
+        }
+    }
+
+    private void clear(int slot) {
+        beforeWrite(slot);
+        keys[slot] = EMPTY;
+        for (long[] column : longs) {
+            column[slot] = 0L;
+        }
+        for (int[] column : ints) {
+            column[slot] = 0;
+        }
+        for (float[] column : floats) {
+            column[slot] = 0f;
+        }
+        for (short[] column : shorts) {
+            column[slot] = 0;
+        }
+    }
+
+    private void beforeWrite(int slot) {
+        if (snapshot != null) {
+            snapshot.preserve(slot / PAGE);
+        }
+    }
+
+    // Called before the table moves to new arrays; the snapshot's frozen ones no longer change
+    private void detachSnapshot() {
+        snapshot = null;
+    }
+
+    /**
+     * The table's contents as of {@link #beginSnapshot()}, in the layout {@link #readFrom}
+     * reads: a header, then the keys and each column as one contiguous array.
+     */
+    public final class Snapshot {
+
+        private final int capacity = keys.length;
+        private final int entries = size;
+        private final long[] frozenKeys = keys;
+        private final long[][] frozenLongs = longs.clone();
+        private final int[][] frozenInts = ints.clone();
+        private final float[][] frozenFloats = floats.clone();
+        private final short[][] frozenShorts = shorts.clone();
+        private final int rowBytes = Long.BYTES * (1 + longs.length) + Integer.BYTES * ints.length
+                + Float.BYTES * floats.length + Short.BYTES * shorts.length;
+        // Guarded by the table: pages copied aside before a write, and pages already written out
+        private final ByteBuffer[] copies = new ByteBuffer[(capacity + PAGE - 1) / PAGE];
+        private final boolean[] written = new boolean[copies.length];
+
+        private Snapshot() {
+        }
+
+        /**
+         * Writes the snapshot at {@code position} and returns the position after it. Takes
+         * the table's monitor for each page; the file I/O runs outside it.
+         */
+        public long writeTo(FileChannel channel, long position) throws IOException {
+            try {
+                writeFully(channel, ByteBuffer.allocate(HEADER_BYTES)
+                        .putInt(capacity).putInt(entries)
+                        .putInt(frozenLongs.length).putInt(frozenInts.length)
+                        .putInt(frozenFloats.length).putInt(frozenShorts.length)
+                        .flip(), position);
+                final long base = position + HEADER_BYTES;
+                final ByteBuffer buffer = ByteBuffer.allocate(PAGE * rowBytes);
+                for (int page = 0; page < copies.length; page++) {
+                    final ByteBuffer data;
+                    synchronized (DeviceStateTable.this) {
+                        if (copies[page] != null) {
+                            data = copies[page];
+                            copies[page] = null;
+                        } else {
+                            data = fill(buffer.clear(), page);
+                        }
+                        written[page] = true;
+                    }
+                    writePage(channel, base, page, data);
+                }
+                return base + (long) capacity * rowBytes;
+            } finally {
+                synchronized (DeviceStateTable.this) {
+                    if (snapshot == this) {
+                        snapshot = null;
+                    }
+                    Arrays.fill(copies, null);
+                }
+            }
+        }
+
+        private void preserve(int page) {
+            if (!written[page] && copies[page] == null) {
+                copies[page] = fill(ByteBuffer.allocate(pageSlots(page) * rowBytes), page);
+            }
+        }
+
+        private int pageSlots(int page) {
+            return Math.min(PAGE, capacity - page * PAGE);
+        }
+
+        // Copies one page of every column, column after column, and flips the buffer
+        private ByteBuffer fill(ByteBuffer buffer, int page) {
+            final int from = page * PAGE;
+            final int count = pageSlots(page);
+            buffer.asLongBuffer().put(frozenKeys, from, count);
+            buffer.position(buffer.position() + count * Long.BYTES);
+            for (long[] column : frozenLongs) {
+                buffer.asLongBuffer().put(column, from, count);
+                buffer.position(buffer.position() + count * Long.BYTES);
+            }
+            for (int[] column : frozenInts) {
+                buffer.asIntBuffer().put(column, from, count);
+                buffer.position(buffer.position() + count * Integer.BYTES);
+            }
+            for (float[] column : frozenFloats) {
+                buffer.asFloatBuffer().put(column, from, count);
+                buffer.position(buffer.position() + count * Float.BYTES);
+            }
+            for (short[] column : frozenShorts) {
+                buffer.asShortBuffer().put(column, from, count);
+                buffer.position(buffer.position() + count * Short.BYTES);
+            }
+            return buffer.flip();
+        }
+
+        // Each column's slice of the page goes to its place in that column's array
+        private void writePage(FileChannel channel, long base, int page, ByteBuffer data) throws IOException {
+            final int count = pageSlots(page);
+            long columnStart = base;
+            int offset = 0;
+            final int columns = 1 + frozenLongs.length + frozenInts.length + frozenFloats.length + frozenShorts.length;
+            for (int c = 0; c < columns; c++) {
+                final int elementBytes = elementBytes(c);
+                final int length = count * elementBytes;
+                writeFully(channel, data.slice(offset, length), columnStart + (long) page * PAGE * elementBytes);
+                offset += length;
+                columnStart += (long) capacity * elementBytes;
+            }
+        }
+
+        // Element size of the c-th column in file order: keys, longs, ints, floats, shorts
+        private int elementBytes(int c) {
+            if (c < 1 + frozenLongs.length) {
+                return Long.BYTES;
+            }
+            if (c < 1 + frozenLongs.length + frozenInts.length + frozenFloats.length) {
+                return Integer.BYTES;
+            }
+            return Short.BYTES;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
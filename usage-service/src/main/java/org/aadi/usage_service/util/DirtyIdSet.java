@@ -0,0 +1,49 @@
+package org.aadi.usage_service.util;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Concurrent set of ids marked since the last {@link #drain()}. Database ids are dense, so
+ * they are kept in a bitset (one bit per id, no boxing); ids beyond {@code 2^26} (an 8 MB
+ * bitset) go to a small overflow set.
+ */
+public final class DirtyIdSet {
+
+    private static final long MAX_BIT_INDEX = 1L << 26;
+
+    private BitSet bits = new BitSet();
+    private Set<Long> overflow = new HashSet<>();
+
+    public synchronized void mark(long id) {
+        if (id >= 0 && id < MAX_BIT_INDEX) {
+            bits.set((int) id);
+        } else {
+            overflow.add(id);
+        }
+    }
+
+    /**
+     * Returns every id marked since the previous drain and starts a fresh set.
+     */
+    public long[] drain() {
+        final BitSet drainedBits;
+        final Set<Long> drainedOverflow;
+        synchronized (this) {
+            drainedBits = bits;
+            drainedOverflow = overflow;
+            bits = new BitSet(drainedBits.length());
+            overflow = new HashSet<>();
+        }
+        final long[] ids = new long[drainedBits.cardinality() + drainedOverflow.size()];
+        int i = 0;
+        for (int id = drainedBits.nextSetBit(0); id >= 0; id = drainedBits.nextSetBit(id + 1)) {
+            ids[i++] = id;
+        }
+        for (Long id : drainedOverflow) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,102 @@
+package org.aadi.usage_service.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Flux query template with named parameters, referenced as {@code params.name} the way
+ * InfluxDB's parameterized queries do. Values are rendered as Flux literals on
+ * {@link #build()} (strings quoted and escaped, instants as time literals, durations in
+ * milliseconds, collections as arrays, patterns as regex literals), so no caller formats
+ * values into query text.
+ * <p>
+ * InfluxDB OSS does not accept a {@code params} object with the query, hence the
+ * rendering is done client-side.
+ */
+public final class FluxQuery {
+
+    private static final Pattern PARAM = Pattern.compile("\\bparams\\.([A-Za-z_][A-Za-z0-9_]*)");
+
+    private final StringBuilder template;
+    private final Map<String, String> params = new HashMap<>();
+
+    private FluxQuery(String template) {
+        this.template = new StringBuilder(template);
+    }
+
+    public static FluxQuery of(String template) {
+        return new FluxQuery(template);
+    }
+
+    /**
+     * Appends more template text, e.g. further pipeline stages after a shared source.
+     */
+    public FluxQuery append(String moreTemplate) {
+        template.append(moreTemplate);
+        return this;
+    }
+
+    public FluxQuery bind(String name, Object value) {
+        params.put(name, literal(value));
+        return this;
+    }
+
+    /**
+     * Renders the query. Throws if the template references a parameter that was not bound.
+     */
+    public String build() {
+        final Matcher matcher = PARAM.matcher(template);
+        final StringBuilder query = new StringBuilder(template.length() + 64);
+        while (matcher.find()) {
+            final String value = params.get(matcher.group(1));
+            if (value == null) {
+                throw new IllegalArgumentException("Unbound Flux parameter: " + matcher.group(1));
+            }
+            matcher.appendReplacement(query, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(query);
+        return query.toString();
+    }
+
+    private static String literal(Object value) {
+        return switch (value) {
+            case null -> throw new IllegalArgumentException("Flux parameters cannot be null");
+            case String string -> quote(string);
+            case Instant instant -> instant.toString();
+            case Duration duration -> duration.toMillis() + "ms";
+            case Long number -> number.toString();
+            case Integer number -> number.toString();
+            case Double number -> number.toString();
+            case Boolean bool -> bool.toString();
+            case Pattern pattern -> "/" + pattern.pattern().replace("/", "\\/") + "/";
+            case Collection<?> values -> values.stream()
+                    .map(FluxQuery::literal)
+                    .collect(Collectors.joining(", ", "[", "]"));
+            default -> throw new IllegalArgumentException(
+                    "Unsupported Flux parameter type: " + value.getClass().getName());
+        };
+    }
+
+    private static String quote(String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"', '\\' -> quoted.append('\\').append(c);
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                // Flux interpolates ${...} inside string literals
+                case '$' -> quoted.append("\\$");
+                default -> quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
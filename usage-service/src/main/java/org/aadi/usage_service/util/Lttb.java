@@ -0,0 +1,68 @@
+package org.aadi.usage_service.util;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling. Keeps the first and last point and, from
+ * each of {@code threshold - 2} equal buckets in between, the point forming the largest
+ * triangle with the previously kept point and the average of the next bucket. Peaks and
+ * troughs survive, so the shape of the chart is preserved with far fewer points.
+ */
+public final class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Returns the indexes (ascending) of the points to keep out of the first {@code size}
+     * entries of {@code x}/{@code y}, which must be sorted by {@code x}.
+     */
+    public static int[] downsample(long[] x, double[] y, int size, int threshold) {
+        if (threshold >= size || threshold < 3) {
+            final int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        final int[] selected = new int[threshold];
+        final double bucketSize = (double) (size - 2) / (threshold - 2);
+        int previous = 0;
+        selected[0] = 0;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket (the last point for the final bucket)
+            final int nextStart = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            final int nextEnd = Math.min((int) Math.floor((bucket + 2) * bucketSize) + 1, size);
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x[i];
+                avgY += y[i];
+            }
+            final int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            final int start = (int) Math.floor(bucket * bucketSize) + 1;
+            final int end = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            final double previousX = x[previous];
+            final double previousY = y[previous];
+            double maxArea = -1;
+            int chosen = start;
+            for (int i = start; i < end; i++) {
+                // Twice the triangle area; only the comparison matters
+                final double area = Math.abs((previousX - avgX) * (y[i] - previousY)
+                        - (previousX - x[i]) * (avgY - previousY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = i;
+                }
+            }
+            selected[bucket + 1] = chosen;
+            previous = chosen;
+        }
+
+        selected[threshold - 1] = size - 1;
+        return selected;
+    }
+}
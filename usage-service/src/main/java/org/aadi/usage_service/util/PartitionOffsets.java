@@ -0,0 +1,91 @@
+package org.aadi.usage_service.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Next offset to apply per partition of one topic, for state that is folded from Kafka
+ * records and snapshotted: records below it are already in the state and are skipped when
+ * replayed. Not thread-safe: owners guard it together with the state it describes.
+ */
+public final class PartitionOffsets {
+
+    private long[] next = new long[0];
+
+    /**
+     * Whether the record at {@code offset} is already reflected in the state.
+     */
+    public boolean isApplied(int partition, long offset) {
+        return partition < next.length && offset < next[partition];
+    }
+
+    public void advance(int partition, long offset) {
+        if (partition >= next.length) {
+            next = Arrays.copyOf(next, partition + 1);
+        }
+        next[partition] = Math.max(next[partition], offset + 1);
+    }
+
+    /**
+     * Next offset to apply for {@code partition}, or -1 if nothing has been applied.
+     */
+    public long get(int partition) {
+        return partition < next.length && next[partition] > 0 ? next[partition] : -1L;
+    }
+
+    /**
+     * Forgets {@code partition}, whose state has been dropped.
+     */
+    public void remove(int partition) {
+        if (partition < next.length) {
+            next[partition] = 0;
+        }
+    }
+
+    public int partitions() {
+        return next.length;
+    }
+
+    public void clear() {
+        next = new long[0];
+    }
+
+    public long writeTo(FileChannel channel, long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + next.length * Long.BYTES);
+        buffer.putInt(next.length);
+        for (long offset : next) {
+            buffer.putLong(offset);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    public long readFrom(FileChannel channel, long position) throws IOException {
+        final ByteBuffer count = readFully(channel, position, Integer.BYTES);
+        final int partitions = count.getInt();
+        if (partitions < 0 || partitions > 1 << 16) {
+            throw new IOException("Corrupt partition offsets (" + partitions + " partitions)");
+        }
+        final ByteBuffer offsets = readFully(channel, position + Integer.BYTES, partitions * Long.BYTES);
+        next = new long[partitions];
+        for (int i = 0; i < partitions; i++) {
+            next[i] = offsets.getLong();
+        }
+        return position + Integer.BYTES + (long) partitions * Long.BYTES;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+}
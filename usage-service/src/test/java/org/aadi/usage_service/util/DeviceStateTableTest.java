@@ -0,0 +1,296 @@
+package org.aadi.usage_service.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeviceStateTableTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void insertReturnsTheSameSlotForAKnownKey() {
+        final DeviceStateTable table = new DeviceStateTable(16, 0.75f, 1, 0, 0, 0);
+
+        final int slot = table.insert(42L);
+        table.setLong(0, slot, 7L);
+
+        assertThat(table.insert(42L)).isEqualTo(slot);
+        assertThat(table.find(42L)).isEqualTo(slot);
+        assertThat(table.getLong(0, slot)).isEqualTo(7L);
+        assertThat(table.find(43L)).isEqualTo(-1);
+        assertThat(table.size()).isEqualTo(1);
+    }
+
+    @Test
+    void capacityIsSizedExactlyForTheExpectedEntries() {
+        final DeviceStateTable table = new DeviceStateTable(1_000_000, 0.75f, 0, 0, 0, 0);
+
+        // Not rounded up to the next power of two (2^21)
+        assertThat(table.capacity()).isBetween(1_333_334, 1_333_400);
+    }
+
+    @Test
+    void removalShiftsBackEntriesThatWrapAroundTheEnd() {
+        final DeviceStateTable table = new DeviceStateTable(16, 0.75f, 1, 0, 0, 0);
+        final int last = table.capacity() - 1;
+        // Keys whose home is the last slot probe on into slot 0 and beyond
+        final List<Long> colliding = keysWithHome(table.capacity(), last, 3);
+        for (long key : colliding) {
+            table.setLong(0, table.insert(key), key * 10);
+        }
+        assertThat(table.find(colliding.get(0))).isEqualTo(last);
+        assertThat(table.find(colliding.get(1))).isEqualTo(0);
+        assertThat(table.find(colliding.get(2))).isEqualTo(1);
+
+        table.removeAt(last);
+
+        assertThat(table.find(colliding.get(0))).isEqualTo(-1);
+        assertThat(table.find(colliding.get(1))).isEqualTo(last);
+        assertThat(table.find(colliding.get(2))).isEqualTo(0);
+        assertThat(table.getLong(0, last)).isEqualTo(colliding.get(1) * 10);
+        assertThat(table.getLong(0, 0)).isEqualTo(colliding.get(2) * 10);
+        assertThat(table.isOccupied(1)).isFalse();
+        assertThat(table.getLong(0, 1)).isZero();
+        assertThat(table.size()).isEqualTo(2);
+    }
+
+    @Test
+    void removalLeavesEntriesAtTheirHomeInPlace() {
+        final DeviceStateTable table = new DeviceStateTable(16, 0.75f, 0, 0, 0, 0);
+        final List<Long> colliding = keysWithHome(table.capacity(), 3, 2);
+        // Its home is the slot right after the run, so it must not move back
+        final long neighbour = keysWithHome(table.capacity(), 4, 1).getFirst();
+        table.insert(colliding.get(0));
+        table.insert(neighbour);
+        table.insert(colliding.get(1));
+        assertThat(table.find(colliding.get(1))).isEqualTo(5);
+
+        table.removeAt(3);
+
+        assertThat(table.find(neighbour)).isEqualTo(4);
+        assertThat(table.find(colliding.get(1))).isEqualTo(3);
+    }
+
+    @Test
+    void randomInsertsAndRemovalsMatchAHashMap() {
+        final DeviceStateTable table = new DeviceStateTable(64, 0.75f, 1, 1, 1, 1);
+        final Map<Long, Long> expected = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            // A small key range keeps runs long and removals frequent
+            final long key = random.nextInt(2_000) - 1_000;
+            if (random.nextInt(3) == 0) {
+                final int slot = table.find(key);
+                assertThat(slot >= 0).isEqualTo(expected.containsKey(key));
+                if (slot >= 0) {
+                    table.removeAt(slot);
+                    expected.remove(key);
+                }
+            } else {
+                final int slot = table.insert(key);
+                table.setLong(0, slot, key * 3);
+                table.setInt(0, slot, (int) key);
+                table.setFloat(0, slot, key / 2f);
+                table.setShort(0, slot, (short) key);
+                expected.put(key, key * 3);
+            }
+        }
+
+        assertThat(table.size()).isEqualTo(expected.size());
+        expected.forEach((key, value) -> {
+            final int slot = table.find(key);
+            assertThat(slot).isNotNegative();
+            assertThat(table.getLong(0, slot)).isEqualTo(value);
+            assertThat(table.getInt(0, slot)).isEqualTo(key.intValue());
+            assertThat(table.getFloat(0, slot)).isEqualTo(key / 2f);
+            assertThat(table.getShort(0, slot)).isEqualTo((short) key.longValue());
+        });
+    }
+
+    @Test
+    void growingRehashesEveryEntryWithItsColumns() {
+        final DeviceStateTable table = new DeviceStateTable(16, 0.75f, 1, 0, 1, 0);
+        final int initialCapacity = table.capacity();
+        for (long key = 1; key <= 1_000; key++) {
+            final int slot = table.insert(key * 7919);
+            table.setLong(0, slot, key);
+            table.setFloat(0, slot, key * 0.5f);
+        }
+
+        assertThat(table.capacity()).isGreaterThan(initialCapacity);
+        assertThat(table.size()).isEqualTo(1_000);
+        for (long key = 1; key <= 1_000; key++) {
+            final int slot = table.find(key * 7919);
+            assertThat(table.getLong(0, slot)).isEqualTo(key);
+            assertThat(table.getFloat(0, slot)).isEqualTo(key * 0.5f);
+        }
+    }
+
+    @Test
+    void snapshotRoundTripRestoresEntriesAndColumns() throws IOException {
+        final DeviceStateTable table = new DeviceStateTable(100, 0.75f, 2, 1, 1, 1);
+        for (long key = -50; key < 50; key++) {
+            final int slot = table.insert(key);
+            table.setLong(0, slot, key);
+            table.setLong(1, slot, -key);
+            table.setInt(0, slot, (int) key * 2);
+            table.setFloat(0, slot, key * 1.5f);
+            table.setShort(0, slot, (short) (key * 3));
+        }
+        table.removeAt(table.find(0L));
+
+        final Path file = tempDir.resolve("table.snapshot");
+        final long written;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            written = table.writeTo(channel, 0);
+        }
+
+        final DeviceStateTable restored = new DeviceStateTable(16, 0.75f, 2, 1, 1, 1);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertThat(restored.readFrom(channel, 0)).isEqualTo(written);
+        }
+
+        assertThat(restored.size()).isEqualTo(99);
+        assertThat(restored.capacity()).isEqualTo(table.capacity());
+        assertThat(restored.find(0L)).isEqualTo(-1);
+        for (long key = -50; key < 50; key++) {
+            if (key == 0) {
+                continue;
+            }
+            final int slot = restored.find(key);
+            assertThat(slot).isNotNegative();
+            assertThat(restored.getLong(0, slot)).isEqualTo(key);
+            assertThat(restored.getLong(1, slot)).isEqualTo(-key);
+            assertThat(restored.getInt(0, slot)).isEqualTo((int) key * 2);
+            assertThat(restored.getFloat(0, slot)).isEqualTo(key * 1.5f);
+            assertThat(restored.getShort(0, slot)).isEqualTo((short) (key * 3));
+        }
+        // The restored table keeps working, including growth
+        for (long key = 1_000; key < 2_000; key++) {
+            restored.insert(key);
+        }
+        assertThat(restored.find(-50L)).isNotNegative();
+        assertThat(restored.size()).isEqualTo(1_099);
+    }
+
+    @Test
+    void snapshotKeepsTheContentsItWasBegunWith() throws IOException {
+        final DeviceStateTable table = new DeviceStateTable(10_000, 0.75f, 1, 0, 1, 0);
+        for (long key = 1; key <= 10_000; key++) {
+            final int slot = table.insert(key);
+            table.setLong(0, slot, key);
+            table.setFloat(0, slot, key);
+        }
+        final DeviceStateTable.Snapshot snapshot;
+        synchronized (table) {
+            snapshot = table.beginSnapshot();
+        }
+
+        // Changes after the snapshot began: updates, removals and inserts that grow the table
+        for (long key = 1; key <= 10_000; key += 2) {
+            table.setLong(0, table.find(key), -key);
+        }
+        for (long key = 2; key <= 10_000; key += 4) {
+            table.removeAt(table.find(key));
+        }
+        for (long key = 20_000; key < 40_000; key++) {
+            table.insert(key);
+        }
+
+        final Path file = tempDir.resolve("table.snapshot");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            snapshot.writeTo(channel, 0);
+        }
+        final DeviceStateTable restored = new DeviceStateTable(16, 0.75f, 1, 0, 1, 0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            restored.readFrom(channel, 0);
+        }
+
+        assertThat(restored.size()).isEqualTo(10_000);
+        assertThat(restored.find(20_000L)).isEqualTo(-1);
+        for (long key = 1; key <= 10_000; key++) {
+            final int slot = restored.find(key);
+            assertThat(slot).isNotNegative();
+            assertThat(restored.getLong(0, slot)).isEqualTo(key);
+            assertThat(restored.getFloat(0, slot)).isEqualTo((float) key);
+        }
+        // The live table moved on, and a new snapshot can be taken
+        assertThat(table.getLong(0, table.find(1L))).isEqualTo(-1L);
+        assertThat(table.find(2L)).isEqualTo(-1);
+        synchronized (table) {
+            assertThat(table.beginSnapshot()).isNotNull();
+        }
+    }
+
+    @Test
+    void snapshotSurvivesClearingTheTable() throws IOException {
+        final DeviceStateTable table = new DeviceStateTable(100, 0.75f, 1, 0, 0, 0);
+        for (long key = 1; key <= 100; key++) {
+            table.setLong(0, table.insert(key), key);
+        }
+        final DeviceStateTable.Snapshot snapshot;
+        synchronized (table) {
+            snapshot = table.beginSnapshot();
+        }
+        table.clear();
+        table.insert(500L);
+
+        final Path file = tempDir.resolve("table.snapshot");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            snapshot.writeTo(channel, 0);
+        }
+        final DeviceStateTable restored = new DeviceStateTable(16, 0.75f, 1, 0, 0, 0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            restored.readFrom(channel, 0);
+        }
+
+        assertThat(restored.size()).isEqualTo(100);
+        assertThat(restored.find(500L)).isEqualTo(-1);
+        assertThat(restored.getLong(0, restored.find(100L))).isEqualTo(100L);
+    }
+
+    @Test
+    void snapshotWithAnotherColumnLayoutIsRejected() throws IOException {
+        final DeviceStateTable table = new DeviceStateTable(16, 0.75f, 1, 0, 0, 0);
+        table.insert(1L);
+        final Path file = tempDir.resolve("table.snapshot");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            table.writeTo(channel, 0);
+        }
+
+        final DeviceStateTable other = new DeviceStateTable(16, 0.75f, 2, 0, 0, 0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertThatThrownBy(() -> other.readFrom(channel, 0)).isInstanceOf(IOException.class);
+        }
+    }
+
+    // Mirrors the table's multiply-high home slot
+    private static List<Long> keysWithHome(int capacity, int home, int count) {
+        final List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            final long hash = (key * 0x9E3779B97F4A7C15L) >>> 32;
+            if ((int) ((hash * capacity) >>> 32) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,100 @@
+package org.aadi.usage_service.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FluxQueryTest {
+
+    @Test
+    void rendersParametersAsFluxLiterals() {
+        final String query = FluxQuery.of("""
+                from(bucket: params.bucket)
+                  |> range(start: params.start, stop: params.stop)
+                  |> aggregateWindow(every: params.every, fn: sum)
+                  |> filter(fn: (r) => contains(value: r["deviceId"], set: params.devices))
+                  |> limit(n: params.limit)
+                """)
+                .bind("bucket", "usage")
+                .bind("start", Instant.parse("2024-01-01T00:00:00Z"))
+                .bind("stop", Instant.parse("2024-01-02T00:00:00Z"))
+                .bind("every", Duration.ofHours(1))
+                .bind("devices", List.of("1", "2"))
+                .bind("limit", 10)
+                .build();
+
+        assertThat(query).isEqualTo("""
+                from(bucket: "usage")
+                  |> range(start: 2024-01-01T00:00:00Z, stop: 2024-01-02T00:00:00Z)
+                  |> aggregateWindow(every: 3600000ms, fn: sum)
+                  |> filter(fn: (r) => contains(value: r["deviceId"], set: ["1", "2"]))
+                  |> limit(n: 10)
+                """);
+    }
+
+    @Test
+    void escapesStringsSoTheyCannotBreakOutOfTheLiteral() {
+        final String query = FluxQuery.of("params.value")
+                .bind("value", "a\"b\\c\n${d}\t\r")
+                .build();
+
+        assertThat(query).isEqualTo("\"a\\\"b\\\\c\\n\\${d}\\t\\r\"");
+    }
+
+    @Test
+    void rendersNumbersBooleansAndPatterns() {
+        final String query = FluxQuery.of("params.big params.ratio params.flag params.regex")
+                .bind("big", 9_000_000_000L)
+                .bind("ratio", 0.5)
+                .bind("flag", true)
+                .bind("regex", Pattern.compile("^a/b$"))
+                .build();
+
+        assertThat(query).isEqualTo("9000000000 0.5 true /^a\\/b$/");
+    }
+
+    @Test
+    void matchesWholeParameterNames() {
+        final String query = FluxQuery.of("params.start params.startDay")
+                .bind("start", 1)
+                .bind("startDay", 2)
+                .build();
+
+        assertThat(query).isEqualTo("1 2");
+    }
+
+    @Test
+    void appendedTextIsRenderedToo() {
+        final String query = FluxQuery.of("from(bucket: params.bucket)")
+                .append(" |> limit(n: params.n)")
+                .bind("bucket", "b")
+                .bind("n", 1)
+                .build();
+
+        assertThat(query).isEqualTo("from(bucket: \"b\") |> limit(n: 1)");
+    }
+
+    @Test
+    void rejectsUnboundParameters() {
+        final FluxQuery query = FluxQuery.of("range(start: params.start, stop: params.stop)")
+                .bind("start", Instant.EPOCH);
+
+        assertThatThrownBy(query::build)
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("stop");
+    }
+
+    @Test
+    void rejectsNullAndUnsupportedValues() {
+        final FluxQuery query = FluxQuery.of("params.value");
+
+        assertThatThrownBy(() -> query.bind("value", null)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> query.bind("value", new Object())).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,68 @@
+package org.aadi.usage_service.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LttbTest {
+
+    @Test
+    void keepsEveryPointWhenThereAreNoMoreThanTheThreshold() {
+        final long[] x = {1, 2, 3, 4, 5};
+        final double[] y = {5, 4, 3, 2, 1};
+
+        assertThat(Lttb.downsample(x, y, 5, 5)).containsExactly(0, 1, 2, 3, 4);
+        assertThat(Lttb.downsample(x, y, 5, 10)).containsExactly(0, 1, 2, 3, 4);
+    }
+
+    @Test
+    void keepsEveryPointForThresholdsBelowThree() {
+        final long[] x = {1, 2, 3, 4};
+        final double[] y = {1, 2, 3, 4};
+
+        assertThat(Lttb.downsample(x, y, 4, 2)).containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    void onlyLooksAtTheFirstSizeEntries() {
+        final long[] x = {1, 2, 3, 0, 0};
+        final double[] y = {1, 2, 3, 0, 0};
+
+        assertThat(Lttb.downsample(x, y, 3, 10)).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void keepsFirstAndLastAndReturnsThresholdPointsInOrder() {
+        final int size = 1_000;
+        final long[] x = new long[size];
+        final double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = i * 60_000L;
+            y[i] = Math.sin(i / 25.0);
+        }
+
+        final int[] selected = Lttb.downsample(x, y, size, 50);
+
+        assertThat(selected).hasSize(50);
+        assertThat(selected[0]).isZero();
+        assertThat(selected[49]).isEqualTo(size - 1);
+        assertThat(selected).isSorted().doesNotHaveDuplicates();
+    }
+
+    @Test
+    void keepsPeaksAndTroughs() {
+        final int size = 1_000;
+        final long[] x = new long[size];
+        final double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = i;
+            y[i] = 1.0;
+        }
+        y[337] = 100.0;
+        y[701] = -50.0;
+
+        final int[] selected = Lttb.downsample(x, y, size, 20);
+
+        assertThat(selected).contains(337, 701);
+    }
+}
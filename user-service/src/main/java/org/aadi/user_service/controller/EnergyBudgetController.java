@@ -0,0 +1,57 @@
+package org.aadi.user_service.controller;
+
+import org.aadi.user_service.dto.EnergyBudgetDto;
+import org.aadi.user_service.service.EnergyBudgetService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/v1/user")
+public class EnergyBudgetController {
+
+    private final EnergyBudgetService energyBudgetService;
+
+    public EnergyBudgetController(EnergyBudgetService energyBudgetService) {
+        this.energyBudgetService = energyBudgetService;
+    }
+
+    @GetMapping("/{userId}/budgets")
+    public ResponseEntity<List<EnergyBudgetDto>> getBudgets(@PathVariable Long userId) {
+        return ResponseEntity.ok(energyBudgetService.getBudgetsForUser(userId));
+    }
+
+    @PostMapping("/{userId}/budgets")
+    public ResponseEntity<EnergyBudgetDto> createBudget(@PathVariable Long userId,
+                                                        @RequestBody EnergyBudgetDto budgetDto) {
+        try {
+            return new ResponseEntity<>(energyBudgetService.createBudget(userId, budgetDto), HttpStatus.CREATED);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @DeleteMapping("/{userId}/budgets/{budgetId}")
+    public ResponseEntity<Void> deleteBudget(@PathVariable Long userId, @PathVariable Long budgetId) {
+        try {
+            energyBudgetService.deleteBudget(userId, budgetId);
+            return ResponseEntity.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    // Budgets of many users at once, for usage-service's rule evaluation
+    @PostMapping("/budgets/batch")
+    public ResponseEntity<List<EnergyBudgetDto>> getBudgetsForUsers(@RequestBody List<Long> userIds) {
+        return ResponseEntity.ok(energyBudgetService.getBudgetsForUsers(userIds));
+    }
+}
@@ -1,5 +1,6 @@
 package org.aadi.user_service.controller;
 
+import org.aadi.user_service.dto.UserAlertSettingsDto;
 import org.aadi.user_service.dto.UserDto;
 import org.aadi.user_service.entity.User;
 import org.aadi.user_service.repository.UserRepository;
@@ -17,6 +18,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -132,6 +134,12 @@ public class UserController {
         return ResponseEntity.ok(userDto);
     }
 
+    // Alerting settings only, for services that evaluate thresholds for many users at once
+    @PostMapping("/batch")
+    public ResponseEntity<List<UserAlertSettingsDto>> getAlertSettings(@RequestBody List<Long> ids) {
+        return ResponseEntity.ok(userService.getAlertSettings(ids));
+    }
+
     @PutMapping("/{id}")
     public ResponseEntity<String> updateUser(@PathVariable Long id,
                                               @RequestBody UserDto userDto) {
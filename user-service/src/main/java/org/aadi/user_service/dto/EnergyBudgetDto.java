@@ -0,0 +1,22 @@
+package org.aadi.user_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.aadi.user_service.entity.EnergyBudget.BudgetScope;
+import org.aadi.user_service.entity.EnergyBudget.BudgetWindow;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EnergyBudgetDto {
+    private Long id;
+    private Long userId;
+    private BudgetWindow window;
+    private BudgetScope scope;
+    private Long deviceId;
+    private String deviceType;
+    private double limit;
+}
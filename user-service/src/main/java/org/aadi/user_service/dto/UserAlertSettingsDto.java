@@ -0,0 +1,18 @@
+package org.aadi.user_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserAlertSettingsDto {
+    private Long id;
+    private boolean alerting;
+    private double energyAlertingThreshold;
+    private boolean emailNotifications;
+    private String email;
+}
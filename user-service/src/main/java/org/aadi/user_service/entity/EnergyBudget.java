@@ -0,0 +1,60 @@
+package org.aadi.user_service.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An energy budget: the most energy a user, one of their devices, or all their devices of
+ * one type may consume over a rolling hour, day or month.
+ */
+@Entity
+@Table(name = "energy_budget")
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Data
+public class EnergyBudget {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "budget_window")
+    private BudgetWindow window;
+
+    @Enumerated(EnumType.STRING)
+    private BudgetScope scope;
+
+    /** Set for {@link BudgetScope#DEVICE} budgets. */
+    @Column(name = "device_id")
+    private Long deviceId;
+
+    /** Set for {@link BudgetScope#DEVICE_TYPE} budgets. */
+    @Column(name = "device_type")
+    private String deviceType;
+
+    @Column(name = "budget_limit")
+    private double limit;
+
+    public enum BudgetWindow {
+        HOUR, DAY, MONTH
+    }
+
+    public enum BudgetScope {
+        USER, DEVICE, DEVICE_TYPE
+    }
+}
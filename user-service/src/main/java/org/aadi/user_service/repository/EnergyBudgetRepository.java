@@ -0,0 +1,16 @@
+package org.aadi.user_service.repository;
+
+import org.aadi.user_service.entity.EnergyBudget;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface EnergyBudgetRepository extends JpaRepository<EnergyBudget, Long> {
+
+    List<EnergyBudget> findAllByUserId(Long userId);
+
+    List<EnergyBudget> findAllByUserIdIn(Collection<Long> userIds);
+}
@@ -1,12 +1,22 @@
 package org.aadi.user_service.repository;
 
+import org.aadi.user_service.dto.UserAlertSettingsDto;
 import org.aadi.user_service.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByEmail(String email);
+
+    @Query("select new org.aadi.user_service.dto.UserAlertSettingsDto("
+            + "u.id, u.alerting, u.energyAlertingThreshold, u.emailNotifications, u.email) "
+            + "from User u where u.id in :ids")
+    List<UserAlertSettingsDto> findAlertSettingsByIdIn(@Param("ids") Collection<Long> ids);
 }
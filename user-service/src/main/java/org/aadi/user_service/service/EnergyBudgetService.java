@@ -0,0 +1,83 @@
+package org.aadi.user_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aadi.user_service.dto.EnergyBudgetDto;
+import org.aadi.user_service.entity.EnergyBudget;
+import org.aadi.user_service.repository.EnergyBudgetRepository;
+import org.aadi.user_service.repository.UserRepository;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+@Slf4j
+@Service
+public class EnergyBudgetService {
+
+    private final EnergyBudgetRepository energyBudgetRepository;
+    private final UserRepository userRepository;
+
+    public EnergyBudgetService(EnergyBudgetRepository energyBudgetRepository, UserRepository userRepository) {
+        this.energyBudgetRepository = energyBudgetRepository;
+        this.userRepository = userRepository;
+    }
+
+    public List<EnergyBudgetDto> getBudgetsForUser(Long userId) {
+        return energyBudgetRepository.findAllByUserId(userId).stream()
+                .map(this::toDto)
+                .toList();
+    }
+
+    public List<EnergyBudgetDto> getBudgetsForUsers(List<Long> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return List.of();
+        }
+        return energyBudgetRepository.findAllByUserIdIn(userIds).stream()
+                .map(this::toDto)
+                .toList();
+    }
+
+    public EnergyBudgetDto createBudget(Long userId, EnergyBudgetDto input) {
+        if (!userRepository.existsById(userId)) {
+            throw new IllegalArgumentException("User not found");
+        }
+        if (input.getWindow() == null || input.getScope() == null || input.getLimit() <= 0) {
+            throw new IllegalArgumentException("Budget needs a window, a scope and a positive limit");
+        }
+        if (input.getScope() == EnergyBudget.BudgetScope.DEVICE && input.getDeviceId() == null) {
+            throw new IllegalArgumentException("Device budgets need a deviceId");
+        }
+        if (input.getScope() == EnergyBudget.BudgetScope.DEVICE_TYPE
+                && (input.getDeviceType() == null || input.getDeviceType().isBlank())) {
+            throw new IllegalArgumentException("Device type budgets need a deviceType");
+        }
+
+        final EnergyBudget budget = EnergyBudget.builder()
+                .userId(userId)
+                .window(input.getWindow())
+                .scope(input.getScope())
+                .deviceId(input.getScope() == EnergyBudget.BudgetScope.DEVICE ? input.getDeviceId() : null)
+                .deviceType(input.getScope() == EnergyBudget.BudgetScope.DEVICE_TYPE ? input.getDeviceType() : null)
+                .limit(input.getLimit())
+                .build();
+        return toDto(energyBudgetRepository.save(budget));
+    }
+
+    public void deleteBudget(Long userId, Long budgetId) {
+        final EnergyBudget budget = energyBudgetRepository.findById(budgetId)
+                .filter(b -> b.getUserId().equals(userId))
+                .orElseThrow(() -> new IllegalArgumentException("Budget not found"));
+        energyBudgetRepository.delete(budget);
+    }
+
+    private EnergyBudgetDto toDto(EnergyBudget budget) {
+        return EnergyBudgetDto.builder()
+                .id(budget.getId())
+                .userId(budget.getUserId())
+                .window(budget.getWindow())
+                .scope(budget.getScope())
+                .deviceId(budget.getDeviceId())
+                .deviceType(budget.getDeviceType())
+                .limit(budget.getLimit())
+                .build();
+    }
+}
@@ -2,12 +2,15 @@ package org.aadi.user_service.service;
 
 import lombok.extern.slf4j.Slf4j;
 
+import org.aadi.user_service.dto.UserAlertSettingsDto;
 import org.aadi.user_service.dto.UserDto;
 import org.aadi.user_service.entity.User;
 import org.aadi.user_service.repository.UserRepository;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+
 @Slf4j
 @Service
 public class UserService {
@@ -45,6 +48,13 @@ public class UserService {
                 .orElse(null);
     }
 
+    public List<UserAlertSettingsDto> getAlertSettings(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        return userRepository.findAlertSettingsByIdIn(ids);
+    }
+
     public UserDto findByEmail(String email) {
         return userRepository.findByEmail(email)
                 .map(this::toDto)
@@ -0,0 +1,12 @@
+CREATE TABLE `energy_budget` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `user_id` BIGINT NOT NULL,
+  `budget_window` VARCHAR(20) NOT NULL,
+  `scope` VARCHAR(20) NOT NULL,
+  `device_id` BIGINT,
+  `device_type` VARCHAR(100),
+  `budget_limit` DOUBLE NOT NULL,
+  `created_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  KEY `idx_energy_budget_user` (`user_id`),
+  FOREIGN KEY (`user_id`) REFERENCES `user`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
@@ -0,0 +1,8 @@
+CREATE TABLE `id_generator` (
+  `name` VARCHAR(64) NOT NULL,
+  `next_val` BIGINT NOT NULL,
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+INSERT INTO `id_generator` (`name`, `next_val`)
+SELECT 'alert', COALESCE(MAX(`id`), 0) + 1 FROM `alert`;
@@ -0,0 +1,2 @@
+-- Serves the keyset-paginated alert history: seek by user, newest first
+CREATE INDEX `idx_alert_user_created_at` ON `alert` (`user_id`, `created_at`);
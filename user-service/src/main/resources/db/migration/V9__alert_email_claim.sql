@@ -0,0 +1,4 @@
+-- When a replica last took an unsent alert for email; alerts whose claim has gone stale
+-- are picked up again by the unsent-alert sweep
+ALTER TABLE `alert` ADD COLUMN `email_claimed_at` DATETIME NULL;
+CREATE INDEX `idx_alert_sent_created_at` ON `alert` (`sent`, `created_at`);